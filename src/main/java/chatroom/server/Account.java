@@ -1,50 +1,76 @@
 package chatroom.server;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-
 /**
  * This class represents a registered client, i.e., one that has defined a
  * username and password
  * 
- * At the class level, we maintain a list of all registered clients.
+ * At the class level, we maintain all registered clients in a concurrent map by
+ * username, so that finding an account never waits for a lock. Accounts and
+ * chatrooms may not have the same name; see NameLocks.
+ * 
+ * Every change to an account is recorded in the Journal, and all accounts are
+ * saved from time to time as a Snapshot. Accounts are still Serializable, so
+ * that the files of older versions can be read once.
  * 
  * Passwords are hashed securely, using one of the algorithms built into Java.
  * If this algorithm somehow not exist, this is catastrophic, and we stop the
- * server.
+ * server. Each account records the HashPolicy its hash was made with; accounts
+ * saved by older versions have none, and use HashPolicy.LEGACY. Hashing is slow,
+ * so the messages that need it run it on the PasswordHasher.
  */
 public class Account implements Serializable {
 	private static final long serialVersionUID = 1;
 	private static Logger logger = Logger.getLogger("");
 
-	private static final ArrayList<Account> accounts = new ArrayList<>();
+	private static final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
 	private static final SecureRandom rand = new SecureRandom();
-	private static final int iterations = 127;
+	private static final ExpiryQueue<String> expiryChecks = new ExpiryQueue<>(); // By username
+	private static final long EXPIRY_MILLIS = 3 * 86400 * 1000L; // 3 days
+	static final int SALT_BYTES = 64;
+	private static final String ACCOUNT_FILE = "accounts.snap";
+	private static final String OLD_ACCOUNT_FILE = "accounts.sav"; // Saved by older versions
 
 	private final String username;
-	private final byte[] salt = new byte[64];
+	private final byte[] salt = new byte[SALT_BYTES];
 	private String hashedPassword;
-	private Instant lastLogin;
+	private Instant lastLogin; // Only used to read older files
+	private transient volatile long lastLoginMillis; // See CoarseClock
+	private String algorithm; // null in accounts saved by older versions
+	private int iterations;
 
 	/**
-	 * Add a new account to our list of valid accounts
+	 * Add a new account to our list of valid accounts. Returns false if the name
+	 * is already used, either by an account or by a chatroom.
 	 */
-	public static void add(Account account) {
-		synchronized (accounts) {
-			accounts.add(account);
+	public static boolean add(Account account) {
+		ReentrantLock lock = NameLocks.forName(account.username);
+		lock.lock();
+		try {
+			if (Chatroom.exists(account.username) != null) return false;
+			if (accounts.putIfAbsent(account.username, account) != null) return false;
+			expiryChecks.add(account.username, account.expiryTime());
+			Journal.record(Journal.ACCOUNT, account::write);
+			return true;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -52,77 +78,104 @@ public static void add(Account account) {
 	 * Remove a account from our list of valid accounts
 	 */
 	public static void remove(Account account) {
-		synchronized (accounts) {
-			for (Iterator<Account> i = accounts.iterator(); i.hasNext();) {
-				if (account == i.next()) i.remove();
-			}
+		if (account == null) return;
+		ReentrantLock lock = NameLocks.forName(account.username);
+		lock.lock();
+		try {
+			if (accounts.remove(account.username, account)) Journal.record(Journal.ACCOUNT_DELETED, account.username);
+		} finally {
+			lock.unlock();
 		}
 	}
 
+	/**
+	 * Add or replace an account, without any checks -- only used when replaying
+	 * the journal
+	 */
+	static void restore(Account account) {
+		if (accounts.put(account.username, account) == null) expiryChecks.add(account.username, account.expiryTime());
+	}
+
+	/**
+	 * Remove an account by name -- only used when replaying the journal
+	 */
+	static void forget(String username) {
+		accounts.remove(username);
+	}
+
 	/**
 	 * Find and return an existing account
 	 */
 	public static Account exists(String username) {
-		synchronized (accounts) {
-			for (Account account : accounts) {
-				if (account.username.equals(username)) return account;
-			}
-		}
-		return null;
+		return (username != null) ? accounts.get(username) : null;
 	}
 
 	/**
-	 * Clean up old accounts -- called by cleanup thread
+	 * Clean up accounts that have not logged in for a long time -- called by
+	 * cleanup thread
 	 */
 	public static void cleanupAccounts() {
-		synchronized (accounts) {
-			Instant expiry = Instant.now().minusSeconds(3 * 86400); // 3 days
-			logger.fine("Cleanup accounts: " + accounts.size() + " accounts registered");
-			for (Iterator<Account> i = accounts.iterator(); i.hasNext();) {
-				Account account = i.next();
-				if (account.lastLogin.isBefore(expiry)) {
-					logger.fine("Cleanup accounts: removing account " + account.getUsername());
-					i.remove();
-				}
-			}
-			logger.fine("Cleanup accounts: " + accounts.size() + " accounts registered");
-		}
+		int expired = expiryChecks.expire(username -> {
+			Account account = accounts.get(username);
+			return (account != null) ? account.expiryTime() : Long.MAX_VALUE;
+		}, username -> {
+			logger.fine("Cleanup accounts: removing account " + username);
+			remove(accounts.get(username));
+		});
+		logger.fine("Cleanup accounts: " + expired + " accounts removed, " + accounts.size() + " registered");
 	}
 
 	/**
-	 * Save accounts to disk -- called by cleanup thread
+	 * The time this account expires, if the user does not log in before then
 	 */
-	public static void saveAccounts() {
-		File accountFile = new File(Server.getHome() + "accounts.sav");
-		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(accountFile))) {
-			synchronized (accounts) {
-				out.writeInt(accounts.size());
-				for (Account account : accounts) {
-					out.writeObject(account);
-				}
-				out.flush();
-				out.close();
-			}
-		} catch (IOException e) {
-			logger.severe("Unable to save accounts: " + e.getMessage());
-		}
+	private long expiryTime() {
+		return lastLoginMillis + EXPIRY_MILLIS;
+	}
+
+	/**
+	 * Save accounts to disk -- called when compacting the journal. Accounts may be
+	 * created or deleted while we save, so we first take a copy of the list.
+	 * Returns false if saving failed.
+	 */
+	public static boolean saveAccounts() {
+		return Snapshot.save(Paths.get(Server.getHome() + ACCOUNT_FILE), new ArrayList<>(accounts.values()),
+				Account::write);
 	}
 
 	/**
 	 * Read accounts at program start. No synchronization needed, since no threads
-	 * are running
+	 * are running. If there is no snapshot yet, but a file saved by an older
+	 * version, we read that one, and save it as a snapshot right away.
 	 */
 	public static void readAccounts() {
-		File accountFile = new File(Server.getHome() + "accounts.sav");
-		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(accountFile))) {
+		Path accountFile = Paths.get(Server.getHome() + ACCOUNT_FILE);
+		Path oldAccountFile = Paths.get(Server.getHome() + OLD_ACCOUNT_FILE);
+		try {
+			if (Files.exists(accountFile) || !Files.exists(oldAccountFile)) {
+				int num = Snapshot.read(accountFile, in -> restore(read(in)));
+				logger.info("Loaded " + num + " accounts");
+			} else {
+				readOldAccounts(oldAccountFile);
+				if (saveAccounts()) logger.info("Accounts converted to " + ACCOUNT_FILE + "; "
+						+ OLD_ACCOUNT_FILE + " is no longer used");
+			}
+		} catch (Exception e) {
+			logger.severe("Unable to read accounts: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read accounts saved with Java serialization, by older versions
+	 */
+	private static void readOldAccounts(Path file) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
 			int num = in.readInt();
 			for (int i = 0; i < num; i++) {
 				Account account = (Account) in.readObject();
-				accounts.add(account);
+				restore(account);
 				logger.fine("Loaded account " + account.getUsername());
 			}
-		} catch (Exception e) {
-			logger.severe("Unable to read accounts: " + e.getMessage());
+			logger.info("Loaded " + num + " accounts from " + file.getFileName());
 		}
 	}
 
@@ -136,11 +189,24 @@ public static String getToken() {
 		return bytesToHex(token);
 	}
 
+	/**
+	 * An account as it was written to the journal
+	 */
+	private Account(String username, byte[] salt, String hashedPassword, HashPolicy policy, long lastLoginMillis) {
+		this.username = username;
+		System.arraycopy(salt, 0, this.salt, 0, SALT_BYTES);
+		this.hashedPassword = hashedPassword;
+		setPolicy(policy);
+		this.lastLoginMillis = lastLoginMillis;
+	}
+
 	public Account(String username, String password) {
 		this.username = username;
 		rand.nextBytes(salt);
-		this.hashedPassword = hash(password);
-		this.lastLogin = Instant.now();
+		HashPolicy policy = HashPolicy.getCurrent();
+		this.hashedPassword = hash(policy, password, salt);
+		setPolicy(policy);
+		this.lastLoginMillis = CoarseClock.now();
 	}
 
 	@Override
@@ -150,22 +216,112 @@ public boolean equals(Object o) {
 		return ol.username.equals(this.username);
 	}
 
+	/**
+	 * Check the password. If it is correct, but was hashed with an older policy,
+	 * we hash it again with the current one -- this is the only time we know the
+	 * password.
+	 * 
+	 * The same account may be checked on several threads at once, so we only lock
+	 * while reading or replacing the hash, never while hashing.
+	 */
 	public boolean checkPassword(String password) {
-		String newHash = hash(password);
-		boolean success = hashedPassword.equals(newHash);
-		if (success) this.lastLogin = Instant.now();
+		HashPolicy policy;
+		byte[] oldSalt;
+		String oldHash;
+		synchronized (this) {
+			policy = getPolicy();
+			oldSalt = salt.clone();
+			oldHash = hashedPassword;
+		}
+		String newHash = hash(policy, password, oldSalt);
+		boolean success = MessageDigest.isEqual(oldHash.getBytes(StandardCharsets.US_ASCII),
+				newHash.getBytes(StandardCharsets.US_ASCII));
+		if (success) {
+			this.lastLoginMillis = CoarseClock.now();
+			HashPolicy currentPolicy = HashPolicy.getCurrent();
+			if (!policy.equals(currentPolicy)) {
+				replaceHash(password, currentPolicy, oldHash);
+				logger.fine("Password of account " + username + " hashed again with " + currentPolicy);
+			}
+		}
 		return success;
 	}
 
 	public void changePassword(String newPassword) {
-		rand.nextBytes(salt); // Change the salt with the password!
-		this.hashedPassword = hash(newPassword);
+		replaceHash(newPassword, HashPolicy.getCurrent(), null);
+	}
+
+	/**
+	 * Hash the password with a new salt (change the salt with the password!), and
+	 * store it. If oldHash is given, we only store the new hash if nobody changed
+	 * the password meanwhile.
+	 * 
+	 * As in add() and remove(), the change is recorded while holding the lock for
+	 * the name, and only if the account is still registered; otherwise, a record
+	 * after its deletion would bring it back when the journal is replayed.
+	 */
+	private void replaceHash(String password, HashPolicy policy, String oldHash) {
+		byte[] newSalt = new byte[SALT_BYTES];
+		rand.nextBytes(newSalt);
+		String newHash = hash(policy, password, newSalt);
+		ReentrantLock lock = NameLocks.forName(username);
+		lock.lock();
+		try {
+			synchronized (this) {
+				if (oldHash == null || oldHash.equals(hashedPassword)) {
+					System.arraycopy(newSalt, 0, salt, 0, SALT_BYTES);
+					hashedPassword = newHash;
+					setPolicy(policy);
+					if (accounts.get(username) == this) Journal.record(Journal.ACCOUNT, this::write);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public String getUsername() {
 		return username;
 	}
 
+	public synchronized HashPolicy getPolicy() {
+		return (algorithm == null) ? HashPolicy.LEGACY : new HashPolicy(algorithm, iterations);
+	}
+
+	private void setPolicy(HashPolicy policy) {
+		this.algorithm = policy.getAlgorithm();
+		this.iterations = policy.getIterations();
+	}
+
+	/**
+	 * Write this account as a journal or snapshot record; see read()
+	 */
+	synchronized void write(DataOutputStream out) throws IOException {
+		out.writeUTF(username);
+		out.write(salt);
+		out.writeUTF(hashedPassword);
+		HashPolicy policy = getPolicy();
+		out.writeUTF(policy.getAlgorithm());
+		out.writeInt(policy.getIterations());
+		out.writeLong(lastLoginMillis);
+	}
+
+	static Account read(DataInputStream in) throws IOException {
+		String username = in.readUTF();
+		byte[] salt = new byte[SALT_BYTES];
+		in.readFully(salt);
+		String hashedPassword = in.readUTF();
+		HashPolicy policy = new HashPolicy(in.readUTF(), in.readInt());
+		long lastLoginMillis = in.readLong();
+		return new Account(username, salt, hashedPassword, policy, lastLoginMillis);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lastLoginMillis = (lastLogin != null) ? lastLogin.toEpochMilli() : CoarseClock.now();
+		lastLogin = null;
+	}
+
 	/**
 	 * There are many sources of info on how to securely hash passwords. I'm not a
 	 * crypto expert, so I follow the recommendations of the experts. Here are two
@@ -175,13 +331,9 @@ public String getUsername() {
 	 * 
 	 * https://howtodoinjava.com/security/how-to-generate-secure-password-hash-md5-sha-pbkdf2-bcrypt-examples/
 	 */
-	private String hash(String password) {
+	private static String hash(HashPolicy policy, String password, byte[] salt) {
 		try {
-			char[] chars = password.toCharArray();
-			PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, 64 * 8);
-			SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-			byte[] hash = skf.generateSecret(spec).getEncoded();
-			return bytesToHex(hash);
+			return bytesToHex(policy.hash(password.toCharArray(), salt));
 		} catch (Exception e) {
 			logger.severe("Secure password hashing not possible - stopping server");
 			System.exit(0);
@@ -0,0 +1,107 @@
+package chatroom.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that does not make the caller wait for the disk. Log records
+ * are put into a bounded queue, and a single thread takes whatever is waiting,
+ * writes it with the real handler (e.g., a FileHandler), and flushes once for
+ * the whole batch. The message text is formatted by that thread too, so a
+ * record with parameters costs the caller almost nothing.
+ *
+ * If the queue is full, the caller does not wait either: the record is dropped,
+ * and we later log how many were dropped. Warnings and errors are never
+ * dropped; for these, the caller waits until there is space.
+ */
+public class AsyncHandler extends Handler {
+	private static final int BATCH_SIZE = 1024;
+
+	private final Handler target;
+	private final ArrayBlockingQueue<LogRecord> queue;
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+
+	public AsyncHandler(Handler target, int capacity) {
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		setLevel(target.getLevel());
+		writer = new Thread(this::writeRecords, "LogThread");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record)) return;
+		record.getSourceClassName(); // Find the caller now, while we are still on its thread
+		if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+			try {
+				queue.put(record);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return;
+			}
+		} else if (!queue.offer(record)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		queued.incrementAndGet();
+	}
+
+	/**
+	 * The writer thread: write whatever is waiting, one batch at a time
+	 */
+	private void writeRecords() {
+		ArrayList<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			for (LogRecord record : batch) target.publish(record);
+
+			long numDropped = dropped.getAndSet(0);
+			if (numDropped > 0) {
+				target.publish(new LogRecord(Level.WARNING, "Log queue full: " + numDropped + " records dropped"));
+			}
+			target.flush();
+			written.addAndGet(batch.size());
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Wait (for at most a second) until everything logged so far is written
+	 */
+	@Override
+	public void flush() {
+		long until = queued.get();
+		long deadline = System.currentTimeMillis() + 1000;
+		while (written.get() < until && writer.isAlive() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		target.flush();
+	}
+
+	@Override
+	public void close() {
+		flush();
+		writer.interrupt();
+		target.close();
+	}
+}
@@ -1,16 +1,25 @@
 package chatroom.server;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import chatroom.server.message.Message;
@@ -21,118 +30,226 @@
  * who created it. If that user account is deleted, the chatroom can be claimed
  * by the next person to create an account with the same name.
  * 
- * To avoid problems with duplicates, we use a TreeSet for the membership list.
- * We store usernames rather than account object, to make loading/saving data
- * simpler
+ * The members are a concurrent set, so messages can be sent to a chatroom while
+ * users join and leave. Joining and leaving only hold the lock for the name of
+ * the chatroom for a moment, so that the Journal records them in order. Listing
+ * the members uses an immutable, sorted copy, which we only make again after the
+ * membership has changed. We store usernames rather than account object, to
+ * make loading/saving data simpler. Chatrooms are saved as a Snapshot; they are
+ * still Serializable, so that the files of older versions can be read once.
  * 
- * At the class level, we maintain a list of all existing chatrooms.
+ * At the class level, we maintain all existing chatrooms in two concurrent
+ * maps: a hash map to find a chatroom by name, and a sorted map to list them in
+ * order, or only those whose names start with a given prefix. Since listing the
+ * public chatrooms is much more common than creating or deleting one, we keep
+ * the list of public names, and only rebuild it after a change.
  */
 public class Chatroom implements Comparable<Chatroom>, Sendable, Serializable {
 	private static final long serialVersionUID = 1;
 
 	private static Logger logger = Logger.getLogger("");
+	private static final String CHATROOM_FILE = "chatrooms.snap";
+	private static final String OLD_CHATROOM_FILE = "chatroom.sav"; // Saved by older versions
 
-	private static final TreeSet<Chatroom> chatrooms = new TreeSet<>();
+	private static final ConcurrentHashMap<String, Chatroom> chatrooms = new ConcurrentHashMap<>();
+	private static final ConcurrentSkipListMap<String, Chatroom> sortedChatrooms = new ConcurrentSkipListMap<>();
+	private static final ExpiryQueue<String> expiryChecks = new ExpiryQueue<>(); // By name
+	private static final long EXPIRY_MILLIS = 3 * 86400 * 1000L; // 3 days
+
+	// The public names, valid as long as the version has not changed since
+	private static final AtomicLong version = new AtomicLong();
+	private static volatile PublicNames publicNames = null;
 
 	private final String name;
 	private final String owner; // username of an account
 	private final boolean isPublic;
-	private final ArrayList<String> users = new ArrayList<>();
-	private Instant lastMessage;
+	private ArrayList<String> users; // Only used to read the members from older files
+	private transient Set<String> members = ConcurrentHashMap.newKeySet();
+	private transient AtomicInteger membersVersion = new AtomicInteger();
+	private transient volatile Members membersList = null;
+	private Instant lastMessage; // Only used to read older files
+	private transient volatile long lastMessageMillis; // See CoarseClock
+
+	private static class PublicNames {
+		private final long version;
+		private final List<String> names;
+
+		private PublicNames(long version, List<String> names) {
+			this.version = version;
+			this.names = names;
+		}
+	}
+
+	private static class Members {
+		private final int version;
+		private final List<String> names;
+
+		private Members(int version, List<String> names) {
+			this.version = version;
+			this.names = names;
+		}
+	}
 
 	/**
-	 * Add a new chatroom to our list of chatrooms
+	 * Add a new chatroom to our list of chatrooms. Returns false if the name is
+	 * already used, either by a chatroom or by an account.
 	 */
-	public static void add(Chatroom chatroom) {
-		chatrooms.add(chatroom);
+	public static boolean add(Chatroom chatroom) {
+		ReentrantLock lock = NameLocks.forName(chatroom.name);
+		lock.lock();
+		try {
+			if (Account.exists(chatroom.name) != null) return false;
+			if (chatrooms.putIfAbsent(chatroom.name, chatroom) != null) return false;
+			sortedChatrooms.put(chatroom.name, chatroom);
+			if (chatroom.isPublic) version.incrementAndGet();
+			expiryChecks.add(chatroom.name, chatroom.expiryTime());
+			Journal.record(Journal.CHATROOM, chatroom::write);
+			return true;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Remove a chatroom from our list of valid chatrooms
 	 */
 	public static void remove(Chatroom chatroom) {
-		synchronized (chatrooms) {
-			for (Iterator<Chatroom> i = chatrooms.iterator(); i.hasNext();) {
-				if (chatroom == i.next()) i.remove();
+		ReentrantLock lock = NameLocks.forName(chatroom.name);
+		lock.lock();
+		try {
+			if (chatrooms.remove(chatroom.name, chatroom)) {
+				sortedChatrooms.remove(chatroom.name, chatroom);
+				if (chatroom.isPublic) version.incrementAndGet();
+				Journal.record(Journal.CHATROOM_DELETED, chatroom.name);
 			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add or replace a chatroom, without any checks -- used when reading saved
+	 * chatrooms and replaying the journal
+	 */
+	static void restore(Chatroom chatroom) {
+		if (chatrooms.put(chatroom.name, chatroom) == null) expiryChecks.add(chatroom.name, chatroom.expiryTime());
+		sortedChatrooms.put(chatroom.name, chatroom);
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Remove a chatroom by name -- only used when replaying the journal
+	 */
+	static void forget(String name) {
+		if (chatrooms.remove(name) != null) {
+			sortedChatrooms.remove(name);
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * List the names of all public chatrooms, in order. The list is shared, and
+	 * cannot be changed.
+	 */
+	public static List<String> listPublicNames() {
+		long currentVersion = version.get();
+		PublicNames cached = publicNames;
+		if (cached == null || cached.version != currentVersion) {
+			ArrayList<String> names = new ArrayList<>();
+			for (Chatroom c : sortedChatrooms.values()) if (c.isPublic) names.add(c.name);
+			cached = new PublicNames(currentVersion, Collections.unmodifiableList(names));
+			publicNames = cached; // If anything changed meanwhile, the next call rebuilds it
 		}
+		return cached.names;
 	}
-	
+
 	/**
-	 * List chatroom names
+	 * List the names of the public chatrooms that start with the given prefix, in
+	 * order
 	 */
-	public static ArrayList<String> listPublicNames() {
+	public static List<String> listPublicNames(String prefix) {
 		ArrayList<String> names = new ArrayList<>();
-		synchronized (chatrooms) {
-			for (Chatroom c : chatrooms) if (c.isPublic) names.add(c.name);
+		for (Map.Entry<String, Chatroom> entry : sortedChatrooms.tailMap(prefix).entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) break;
+			if (entry.getValue().isPublic) names.add(entry.getKey());
 		}
 		return names;
 	}
-	
+
 	/**
 	 * Find and return an existing chatroom
 	 */
 	public static Chatroom exists(String name) {
-		synchronized (chatrooms) {
-			for (Chatroom chatroom : chatrooms) {
-				if (chatroom.name.equals(name)) return chatroom;
-			}
-		}
-		return null;
+		return chatrooms.get(name);
 	}
 
 	/**
-	 * Clean up old chatrooms -- called by cleanup thread
+	 * Clean up chatrooms that have had no messages for a long time -- called by
+	 * cleanup thread
 	 */
 	public static void cleanupChatrooms() {
-		synchronized (chatrooms) {
-			logger.fine("Cleanup chatrooms: " + chatrooms.size() + " chatrooms registered");
-			Instant expiry = Instant.now().minusSeconds(3 * 86400); // 3 days
-			for (Iterator<Chatroom> i = chatrooms.iterator(); i.hasNext();) {
-				Chatroom chatroom = i.next();
-				if (chatroom.lastMessage.isBefore(expiry)) {
-					logger.fine("Cleanup chatrooms: removing chatroom " + chatroom.getName());
-					i.remove();
-				}
-			}
-			logger.fine("Cleanup chatrooms: " + chatrooms.size() + " chatrooms registered");
-		}
+		int expired = expiryChecks.expire(name -> {
+			Chatroom chatroom = chatrooms.get(name);
+			return (chatroom != null) ? chatroom.expiryTime() : Long.MAX_VALUE;
+		}, name -> {
+			logger.fine("Cleanup chatrooms: removing chatroom " + name);
+			Chatroom chatroom = chatrooms.get(name);
+			if (chatroom != null) remove(chatroom);
+		});
+		logger.fine("Cleanup chatrooms: " + expired + " chatrooms removed, " + chatrooms.size() + " registered");
 	}
 
 	/**
-	 * Save chatrooms to disk -- called by cleanup thread
+	 * The time this chatroom expires, if nobody sends a message before then
 	 */
-	public static void saveChatrooms() {
-		File chatroomFile = new File(Server.getHome() + "chatroom.sav");
-		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(chatroomFile))) {
-			synchronized (chatrooms) {
-				out.writeInt(chatrooms.size());
-				for (Chatroom chatroom : chatrooms) {
-					out.writeObject(chatroom);
-				}
-				out.flush();
-				out.close();
-			}
-		} catch (IOException e) {
-			logger.severe("Unable to save chatrooms: " + e.getMessage());
-		}
+	private long expiryTime() {
+		return lastMessageMillis + EXPIRY_MILLIS;
+	}
+
+	/**
+	 * Save chatrooms to disk -- called when compacting the journal. Chatrooms may
+	 * be created or deleted while we save, so we first take a copy of the list.
+	 * Returns false if saving failed.
+	 */
+	public static boolean saveChatrooms() {
+		return Snapshot.save(Paths.get(Server.getHome() + CHATROOM_FILE), new ArrayList<>(sortedChatrooms.values()),
+				Chatroom::write);
 	}
 
 	/**
 	 * Read chatrooms at program start. No synchronization needed, since no threads
-	 * are running
+	 * are running. If there is no snapshot yet, but a file saved by an older
+	 * version, we read that one, and save it as a snapshot right away.
 	 */
 	public static void readChatrooms() {
-		File chatroomFile = new File(Server.getHome() + "chatroom.sav");
-		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(chatroomFile))) {
+		Path chatroomFile = Paths.get(Server.getHome() + CHATROOM_FILE);
+		Path oldChatroomFile = Paths.get(Server.getHome() + OLD_CHATROOM_FILE);
+		try {
+			if (Files.exists(chatroomFile) || !Files.exists(oldChatroomFile)) {
+				int num = Snapshot.read(chatroomFile, in -> restore(read(in)));
+				logger.info("Loaded " + num + " chatrooms");
+			} else {
+				readOldChatrooms(oldChatroomFile);
+				if (saveChatrooms()) logger.info("Chatrooms converted to " + CHATROOM_FILE + "; "
+						+ OLD_CHATROOM_FILE + " is no longer used");
+			}
+		} catch (Exception e) {
+			logger.severe("Unable to read chatrooms: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read chatrooms saved with Java serialization, by older versions
+	 */
+	private static void readOldChatrooms(Path file) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
 			int num = in.readInt();
 			for (int i = 0; i < num; i++) {
 				Chatroom chatroom = (Chatroom) in.readObject();
-				chatrooms.add(chatroom);
+				restore(chatroom);
 				logger.fine("Loaded chatroom " + chatroom.getName());
 			}
-		} catch (Exception e) {
-			logger.severe("Unable to read chatrooms: " + e.getMessage());
+			logger.info("Loaded " + num + " chatrooms from " + file.getFileName());
 		}
 	}
 
@@ -140,7 +257,7 @@ public Chatroom(String name, boolean isPublic, String owner) {
 		this.name = name;
 		this.isPublic = isPublic;
 		this.owner = owner;
-		this.lastMessage = Instant.now();
+		this.lastMessageMillis = CoarseClock.now();
 	}
 
 	@Override // Sendable
@@ -153,23 +270,20 @@ public String getName() {
 	 * remain in a chatroom after logout or disconnection, so we remove inactive
 	 * users when we find them.
 	 * 
-	 * Note: If multiple clients are logged in with the same name, only one will
-	 * receive a message. An alternative would be to iterate through the
-	 * clients-list and match names, but this would require synchronization on the
-	 * clients list, and our I/O may be slow. One would also need to put the cleanup
-	 * of invalid usernames into the Client cleanup code, rather than doing it here.
+	 * If a user is logged in from several clients, every one of them receives the
+	 * message. The message is encoded once, before we send it to anyone, and all
+	 * clients then share the same bytes.
 	 */
 	@Override // Sendable
 	public void send(Message msg) {
-		Iterator<String> i = users.iterator();
-		while (i.hasNext()) {
-			String username = i.next();
-			Client user = Client.exists(username);
-			if (user == null) i.remove();
-			else // User exists
-				user.send(msg);
+		msg.toBuffer();
+		for (String username : members) { // Members may join or leave meanwhile
+			Set<Client> sessions = Client.sessions(username);
+			if (sessions.isEmpty()) removeUser(username);
+			else // User is logged in
+				for (Client session : sessions) session.send(msg);
 		}
-		this.lastMessage = Instant.now();
+		this.lastMessageMillis = CoarseClock.now();
 	}
 
 	@Override
@@ -193,14 +307,80 @@ public boolean isPublic() {
 	}
 
 	public void addUser(String username) {
-		if (!users.contains(username)) users.add(username);
+		ReentrantLock lock = NameLocks.forName(name);
+		lock.lock();
+		try {
+			if (members.add(username)) {
+				membersVersion.incrementAndGet();
+				Journal.record(Journal.JOINED, name, username);
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public void removeUser(String username) {
-		users.remove(username);
+		ReentrantLock lock = NameLocks.forName(name);
+		lock.lock();
+		try {
+			if (members.remove(username)) {
+				membersVersion.incrementAndGet();
+				Journal.record(Journal.LEFT, name, username);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isMember(String username) {
+		return username != null && members.contains(username);
+	}
+
+	/**
+	 * Returns the members, sorted by name. The list is shared, and cannot be
+	 * changed.
+	 */
+	public List<String> getUsers() {
+		int currentVersion = membersVersion.get();
+		Members cached = membersList;
+		if (cached == null || cached.version != currentVersion) {
+			ArrayList<String> names = new ArrayList<>(members);
+			Collections.sort(names);
+			cached = new Members(currentVersion, Collections.unmodifiableList(names));
+			membersList = cached; // If anything changed meanwhile, the next call rebuilds it
+		}
+		return cached.names;
+	}
+
+	/**
+	 * Write this chatroom, with its members, as a journal or snapshot record; see
+	 * read()
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeUTF(name);
+		out.writeBoolean(isPublic);
+		out.writeUTF(owner);
+		out.writeLong(lastMessageMillis);
+		String[] names = members.toArray(new String[0]);
+		out.writeInt(names.length);
+		for (String username : names) out.writeUTF(username);
+	}
+
+	static Chatroom read(DataInputStream in) throws IOException {
+		Chatroom chatroom = new Chatroom(in.readUTF(), in.readBoolean(), in.readUTF());
+		chatroom.lastMessageMillis = in.readLong();
+		int numMembers = in.readInt();
+		for (int i = 0; i < numMembers; i++) chatroom.members.add(in.readUTF());
+		return chatroom;
 	}
-	
-	public ArrayList<String> getUsers() {
-		return users; // Arguably, we should return only a copy
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		members = ConcurrentHashMap.newKeySet();
+		if (users != null) members.addAll(users);
+		users = null;
+		lastMessageMillis = (lastMessage != null) ? lastMessage.toEpochMilli() : CoarseClock.now();
+		lastMessage = null;
+		membersVersion = new AtomicInteger();
 	}
 }
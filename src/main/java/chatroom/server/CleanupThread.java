@@ -15,24 +15,26 @@ public void run() {
 		while (true) {
 			logger.info("Cleanup process triggered");
 
-			// Clean up clients
+			// Clean up clients and expired sessions. Each only looks at what is due.
 			Client.cleanupClients();
+			Session.expireSessions();
 
-			// Clean up accounts
+			// Clean up accounts and chatrooms
 			Account.cleanupAccounts();
-			Account.saveAccounts();
-
-			// Clean up chatrooms
 			Chatroom.cleanupChatrooms();
-			Chatroom.saveChatrooms();
 
-			System.gc();
+			// Changes are saved in the journal as they happen. Now and then, we save
+			// everything and start a new journal
+			Journal.compactIfNeeded();
 
 			// Log status
 			long freeMemory = Runtime.getRuntime().freeMemory();
 			freeMemory /= (1024 * 1024);
 			logger.info("Cleanup process complete; " + freeMemory + "MB available, " +
 						currentThread().activeCount() + " threads running");
+			logger.info("Outbound queues: " + OutboundQueue.getTotalOverflows() + " overflows, "
+						+ OutboundQueue.getTotalDropped() + " messages dropped");
+			logger.info("Password hashing: " + PasswordHasher.getStatistics());
 
 			try {
 				Thread.sleep(300000); // Every 5 minutes
@@ -2,9 +2,10 @@
 
 import java.io.IOException;
 import java.net.Socket;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import chatroom.server.message.Message;
@@ -15,74 +16,92 @@
  * communicate with the client using a socket. If the client is logged in, then
  * we have a token representing the client's authorization to use the server.
  * 
- * The first time any client connects, we create the list to store clients, and
- * we start a "cleanup" thread that discards clients that have not sent or
- * received any messages in a long time.
+ * At the class level, we keep a set of all connected clients. The "cleanup"
+ * thread discards clients that have not sent or received any messages in a long
+ * time; an ExpiryQueue tells it which clients to look at. Messages for the
+ * client wait in its outbound queue, and are written by the connection.
+ * Logged-in clients are also indexed by username, in a concurrent map, so
+ * finding a client never waits for a lock. A user may be logged in from several
+ * clients at once. The tokens belong to the Session class.
  */
 public class Client implements Sendable {
 	private static Logger logger = Logger.getLogger("");
-	private static final ArrayList<Client> clients = new ArrayList<>();
+	private static final Set<Client> clients = ConcurrentHashMap.newKeySet();
+	private static final ConcurrentHashMap<String, Set<Client>> clientsByName = new ConcurrentHashMap<>();
+	private static final ExpiryQueue<Client> expiryChecks = new ExpiryQueue<>();
+	private static final long IDLE_LOGGED_OUT_MILLIS = 300 * 1000; // 5 minutes
+	private static final long IDLE_LOGGED_IN_MILLIS = 3600 * 1000; // 1 hour
 
-	private Account account = null;
-	private String token = null;
-	private Socket socket;
-	private boolean clientReachable = true;
-	private Instant lastUsage;
+	private volatile Account account = null;
+	private volatile String token = null;
+	private final Connection connection;
+	private volatile boolean clientReachable = true;
+	private volatile long lastUsage; // See CoarseClock
+	private final OutboundQueue outbound = new OutboundQueue();
+	private CompletableFuture<?> pending = null; // Only used by the thread processing our messages
 
 	/**
-	 * Add a new client to our list of active clients.
+	 * Add a new client to our set of active clients.
 	 */
 	public static void add(Client client) {
-		synchronized (clients) {
-			clients.add(client);
-		}
+		clients.add(client);
+		expiryChecks.add(client, client.expiryTime());
 	}
 
 	/**
-	 * Returns a client, found by username
+	 * Returns a client, found by username. If the user is logged in from several
+	 * clients, we prefer one that still has a valid token.
 	 */
 	public static Client exists(String username) {
-		synchronized (clients) {
-			for (Client c : clients) {
-				if (c.getAccount() != null && c.getName().equals(username)) return c;
+		Client found = null;
+		Set<Client> sessions = clientsByName.get(username);
+		if (sessions != null) {
+			for (Client c : sessions) {
+				found = c;
+				if (c.getToken() != null) break;
 			}
 		}
-		return null;
+		return found;
+	}
+
+	/**
+	 * Returns all clients where the given user is logged in (possibly none)
+	 */
+	public static Set<Client> sessions(String username) {
+		Set<Client> sessions = clientsByName.get(username);
+		return (sessions != null) ? Collections.unmodifiableSet(sessions) : Collections.emptySet();
 	}
 
 	/**
 	 * Clean up old clients -- called by cleanup thread
 	 */
 	public static void cleanupClients() {
-		synchronized (clients) {
-			Instant expiryLoggedOut = Instant.now().minusSeconds(300);
-			Instant expiryLoggedIn = Instant.now().minusSeconds(3600);
-			logger.fine("Cleanup clients: " + clients.size() + " clients registered");
-			for (Iterator<Client> i = clients.iterator(); i.hasNext();) {
-				Client client = i.next();
-				if (client.token == null && client.lastUsage.isBefore(expiryLoggedOut)
-						|| client.token != null && client.lastUsage.isBefore(expiryLoggedIn)) {
-					logger.fine("Cleanup clients: removing client " + client.getName());
-					// Close the socket, ignoring any errors, and remove the client
-					try {
-						if (client.socket != null) client.socket.close();
-					} catch (IOException e) {
-						// We don't care about any errors
-					}
-					i.remove();
-				}
-			}
-			logger.fine("Cleanup clients: " + clients.size() + " clients registered");
-		}
+		int expired = expiryChecks.expire(client -> clients.contains(client) ? client.expiryTime() : Long.MAX_VALUE,
+				client -> {
+					logger.fine("Cleanup clients: removing client " + client.getName() + " with "
+							+ client.outbound.size() + " messages waiting, " + client.outbound.getDropped() + " dropped");
+					clients.remove(client);
+					client.close();
+					client.disconnected();
+				});
+		logger.fine("Cleanup clients: " + expired + " clients removed, " + clients.size() + " registered");
+	}
+
+	/**
+	 * The time this client expires, if it is not used before then
+	 */
+	private long expiryTime() {
+		return lastUsage + ((token == null) ? IDLE_LOGGED_OUT_MILLIS : IDLE_LOGGED_IN_MILLIS);
 	}
 
 	/**
 	 * Create a new client object, communicating over the given socket. Immediately
 	 * start a thread to receive messages from the client.
 	 */
-	public Client(Socket socket) {
-		this.socket = socket;
-		this.lastUsage = Instant.now();
+	public Client(Socket socket) throws IOException {
+		SocketConnection socketConnection = new SocketConnection(socket, this);
+		this.connection = socketConnection;
+		this.lastUsage = CoarseClock.now();
 
 		// Create thread to read incoming messages
 		Runnable r = new Runnable() {
@@ -90,32 +109,103 @@ public Client(Socket socket) {
 			public void run() {
 				try {
 					while (clientReachable) {
-						Message msg = Message.receive(socket);
+						Message msg = Message.receive(socketConnection);
 
 						// Note the syntax "Client.this" - writing "this" would reference the Runnable
 						// object
-						if (msg != null)
-							msg.process(Client.this);
-						else { // Invalid message or broken socket
-							Client.this.send(new MessageError());
-						}
+						Client.this.handle(msg);
 
-						lastUsage = Instant.now();
+						// If the message is still being processed, wait before reading the next one
+						CompletableFuture<?> unfinished = Client.this.takePending();
+						if (unfinished != null) {
+							try {
+								unfinished.join();
+							} catch (Exception e) {
+								// The message has dealt with its own errors
+							}
+						}
 					}
 				} catch (Exception e) {
 					logger.info("Client " + Client.this.getName() + " disconnected");
 				} finally {
-					// When the client is no longer reachable, remove authentication and account
-					token = null;
-					account = null;
+					Client.this.disconnected();
 				}
 			}
 		};
-		Thread t = new Thread(r);
-		t.start();
+		ClientThreads.start(r);
 		logger.info("New client created: " + this.getName());
 	}
 
+	/**
+	 * Create a new client object for the non-blocking server. No thread is
+	 * started: the event loop that owns the connection reads the incoming lines
+	 * and hands each message to handle().
+	 */
+	public Client(Connection connection) {
+		this.connection = connection;
+		this.lastUsage = CoarseClock.now();
+		logger.info("New client created: " + this.getName());
+	}
+
+	/**
+	 * Process one incoming message. A null message means the line we received
+	 * was not a valid message.
+	 */
+	void handle(Message msg) {
+		if (msg != null)
+			msg.process(this);
+		else { // Invalid message or broken socket
+			this.send(new MessageError());
+		}
+
+		lastUsage = CoarseClock.now();
+	}
+
+	/**
+	 * Called by a message whose processing finishes later, on another thread. We
+	 * do not process any further messages from this client until it is done, so
+	 * the replies arrive in the same order as the requests.
+	 */
+	public void suspendUntil(CompletableFuture<?> done) {
+		pending = done;
+	}
+
+	/**
+	 * Returns the processing that must finish before the next message, or null --
+	 * called by the connection after each message
+	 */
+	CompletableFuture<?> takePending() {
+		CompletableFuture<?> unfinished = pending;
+		pending = null;
+		return unfinished;
+	}
+
+	/**
+	 * When the client is no longer reachable, remove authentication and account
+	 */
+	void disconnected() {
+		clientReachable = false;
+		Session.invalidate(token);
+		setAccount(null);
+	}
+
+	/**
+	 * The connection is broken: log the client out. Called by the connection,
+	 * which may not notice until long after the message was sent.
+	 */
+	void unreachable() {
+		logger.warning("Client " + this.getName() + " unreachable; logged out");
+		Session.invalidate(token);
+		clientReachable = false;
+	}
+
+	/**
+	 * Close the connection to this client, ignoring any errors
+	 */
+	void close() {
+		connection.close();
+	}
+
 	@Override // Sendable
 	public String getName() {
 		String name = null;
@@ -124,41 +214,77 @@ public String getName() {
 	}
 
 	/**
-	 * Send a message to this client. In case of an exception, log the client out.
+	 * Send a message to this client. The message is only queued, so we never wait
+	 * for a slow client. If the client cannot keep up, and the overflow policy says
+	 * so, we log the client out and disconnect it.
 	 */
 	@Override // Sendable
 	public void send(Message msg) {
-		try {
-			msg.send(socket);
-			lastUsage = Instant.now();
-		} catch (IOException e) {
-			logger.warning("Client " + Client.this.getName() + " unreachable; logged out");
-			this.token = null;
-			clientReachable = false;
+		if (!clientReachable) return;
+		if (outbound.add(msg)) {
+			lastUsage = CoarseClock.now();
+			connection.drain();
+		} else {
+			logger.warning("Client " + this.getName() + " too slow; disconnected");
+			unreachable();
+			connection.close();
 		}
 	}
 
+	OutboundQueue getOutbound() {
+		return outbound;
+	}
+
 	public Account getAccount() {
 		return account;
 	}
 
 	public void setAccount(Account account) {
+		String oldName = getName();
 		this.account = account;
+		String newName = getName();
+		if (oldName != null && !oldName.equals(newName)) {
+			clientsByName.computeIfPresent(oldName, (name, sessions) -> {
+				sessions.remove(this);
+				return sessions.isEmpty() ? null : sessions;
+			});
+		}
+		if (newName != null) {
+			clientsByName.compute(newName, (name, sessions) -> {
+				if (sessions == null) sessions = ConcurrentHashMap.newKeySet();
+				sessions.add(this);
+				return sessions;
+			});
+		}
 	}
 
 	public String getToken() {
 		return token;
 	}
 
+	/**
+	 * Only called by Session: use Session.create and Session.invalidate to log a
+	 * client in or out
+	 */
 	public void setToken(String token) {
 		this.token = token;
 	}
 
+	/**
+	 * Forget the token, unless the client has already received a new one
+	 */
+	void clearToken(String token) {
+		if (token.equals(this.token)) {
+			this.token = null;
+			expiryChecks.add(this, expiryTime()); // Logged out clients expire sooner
+		}
+	}
+
 	public Socket getSocket() {
-		return socket;
+		return connection.getSocket();
 	}
 
-	public Instant getLastUsage() {
+	public long getLastUsage() {
 		return lastUsage;
 	}
 }
@@ -0,0 +1,79 @@
+package chatroom.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Starts the threads of the blocking server: the listener, one reader per
+ * client, and the writers that send the messages waiting for each client.
+ * Normally, these are ordinary platform threads, and writers come from a pool.
+ * If virtual threads are enabled, every task runs on a virtual thread instead,
+ * which makes a blocked reader or writer very cheap.
+ *
+ * Virtual threads need Java 21 or later. We compile for older versions, so we
+ * look up the executor using reflection, and fall back to platform threads if
+ * it does not exist.
+ *
+ * Virtual threads must not block while holding a monitor (synchronized), since
+ * this pins the carrier thread. The shared lists of clients, accounts and
+ * chatrooms therefore use ReentrantLock instead. Sockets are closed after the
+ * list of clients has been unlocked.
+ */
+public class ClientThreads {
+	private static Logger logger = Logger.getLogger("");
+	private static ExecutorService executor = null; // null means: use platform threads
+	private static volatile ExecutorService writers = null; // Only created when needed
+
+	/**
+	 * Run all future tasks on virtual threads, if the Java runtime supports them.
+	 * Returns false if it does not.
+	 */
+	public static boolean useVirtualThreads() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			executor = (ExecutorService) factory.invoke(null);
+			logger.info("Using virtual threads");
+			return true;
+		} catch (Exception e) {
+			logger.warning("Virtual threads need Java 21 or later - using platform threads");
+			return false;
+		}
+	}
+
+	public static boolean isVirtual() {
+		return executor != null;
+	}
+
+	/**
+	 * Run a task on a new thread
+	 */
+	public static void start(Runnable r) {
+		if (executor != null) executor.execute(r);
+		else new Thread(r).start();
+	}
+
+	/**
+	 * Run a writer task. Writers only live as long as there is something to send,
+	 * so platform threads are reused from a pool.
+	 */
+	public static void startWriter(Runnable r) {
+		if (executor != null) {
+			executor.execute(r);
+		} else {
+			if (writers == null) createWriterPool();
+			writers.execute(r);
+		}
+	}
+
+	private static synchronized void createWriterPool() {
+		if (writers == null) {
+			writers = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "WriterThread");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package chatroom.server;
+
+/**
+ * The current time, in milliseconds since 1970, as a plain long. Clients,
+ * chatrooms and sessions note the time of every message, to find out later
+ * which ones are no longer used. For this, the time only needs to be accurate
+ * to a fraction of a second, so rather than asking the system every time, a
+ * thread updates the time every few milliseconds, and everyone else reads it.
+ *
+ * The time never goes backwards, even if the system clock is set back; it then
+ * stands still until the system clock catches up.
+ */
+public class CoarseClock {
+	private static final long TICK_MILLIS = 10;
+
+	private static volatile long now = System.currentTimeMillis();
+
+	static {
+		Thread ticker = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TICK_MILLIS);
+				} catch (InterruptedException e) {
+				}
+				long time = System.currentTimeMillis();
+				if (time > now) now = time;
+			}
+		}, "ClockThread");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * The current time, in milliseconds since 1970, at most a few milliseconds
+	 * old
+	 */
+	public static long now() {
+		return now;
+	}
+}
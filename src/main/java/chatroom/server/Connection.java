@@ -0,0 +1,18 @@
+package chatroom.server;
+
+import java.net.Socket;
+
+/**
+ * The connection to one client. The blocking server uses a SocketConnection,
+ * read by a thread of its own; the non-blocking server uses an NioConnection,
+ * read by an event loop.
+ *
+ * Messages for the client wait in the client's outbound queue. When asked to
+ * drain the queue, the connection writes them out in the background, and tells
+ * the client if the connection breaks.
+ */
+public interface Connection {
+	public abstract Socket getSocket();
+	public abstract void drain(); // Start writing the client's outbound queue, without waiting
+	public abstract void close(); // Close the connection, ignoring any errors
+}
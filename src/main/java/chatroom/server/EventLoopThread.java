@@ -0,0 +1,124 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * One event loop of the non-blocking server. It waits on a selector for any of
+ * its connections to become readable or writable, and handles them in turn.
+ *
+ * Other threads never touch the selector directly. Instead, they hand a task to
+ * the event loop using execute(), and the event loop runs it the next time it
+ * wakes up.
+ */
+public class EventLoopThread extends Thread {
+	private static Logger logger = Logger.getLogger("");
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// Shared by all connections of this event loop, so that an idle connection
+	// does not need a buffer of its own
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	private NioListener listener = null; // Only set for the event loop that accepts connections
+
+	public EventLoopThread(int number) throws IOException {
+		super();
+		this.setName("EventLoopThread-" + number);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Run a task on this event loop
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Accept new connections on this event loop
+	 */
+	void registerListener(NioListener listener) {
+		execute(() -> {
+			try {
+				this.listener = listener;
+				listener.getChannel().register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				logger.severe("Unable to accept connections: " + e.toString());
+			}
+		});
+	}
+
+	/**
+	 * Take over a newly accepted connection
+	 */
+	void register(SocketChannel channel) {
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true); // See SocketConnection
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				NioConnection connection = new NioConnection(channel, key, this);
+				key.attach(connection);
+				Client.add(connection.getClient());
+			} catch (IOException e) {
+				logger.info(e.toString());
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// We don't care about any errors
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						listener.accept();
+					} else {
+						handle(key);
+					}
+				}
+			} catch (Exception e) {
+				logger.warning(e.toString());
+			}
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		NioConnection connection = (NioConnection) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) connection.read(readBuffer);
+			if (key.isValid() && key.isWritable()) connection.flush();
+		} catch (Exception e) { // Broken connection, or an error processing a message
+			logger.info("Client " + connection.getClient().getName() + " disconnected");
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package chatroom.server;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Things that expire if they are not used for some time: clients, sessions,
+ * accounts and chatrooms. Rather than checking all of them, the cleanup thread
+ * only looks at those that are due, using a queue ordered by the time they
+ * might expire.
+ *
+ * Using something moves its expiry time, but we do not touch the queue then:
+ * that would make every message wait for the lock of the queue. Instead, when a
+ * check falls due, we ask for the current expiry time. If it has moved, the
+ * item is queued again for the new time. An item that is used all the time is
+ * therefore checked once per lifetime, and the work of the cleanup thread grows
+ * with the number of items that are due, not with the number that exist.
+ */
+public class ExpiryQueue<T> {
+	private final DelayQueue<Check<T>> checks = new DelayQueue<>();
+
+	/**
+	 * Check the item when the given time is reached
+	 */
+	public void add(T item, long expires) {
+		checks.add(new Check<>(item, expires));
+	}
+
+	/**
+	 * Find the items that are due. The function gives the current expiry time of
+	 * an item, or Long.MAX_VALUE if it no longer exists. Items that have expired
+	 * are passed to the consumer; all others are queued again. Returns the number
+	 * of items expired.
+	 */
+	public int expire(ToLongFunction<T> expiryTime, Consumer<T> onExpired) {
+		int expired = 0;
+		long now = System.currentTimeMillis();
+		Check<T> check;
+		while ((check = checks.poll()) != null) {
+			long expires = expiryTime.applyAsLong(check.item);
+			if (expires == Long.MAX_VALUE) continue; // Already gone
+			if (expires <= now) {
+				onExpired.accept(check.item);
+				expired++;
+			} else {
+				checks.add(new Check<>(check.item, expires));
+			}
+		}
+		return expired;
+	}
+
+	public int size() {
+		return checks.size();
+	}
+
+	/**
+	 * An entry in the queue. The item itself cannot be queued, since its expiry
+	 * time changes whenever it is used.
+	 */
+	private static class Check<T> implements Delayed {
+		private final T item;
+		private final long time;
+
+		private Check(T item, long time) {
+			this.item = item;
+			this.time = time;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(time, ((Check<?>) o).time);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package chatroom.server;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * How passwords are hashed: the algorithm, and how many iterations it runs.
+ * More iterations make a stolen list of hashes harder to crack, but also make
+ * every login slower. Each account records the policy its hash was made with,
+ * so we can change the current policy at any time: an account still using an
+ * older policy is hashed again with the current one the next time its user logs
+ * in successfully.
+ *
+ * The algorithm may be any password-based key derivation that Java provides,
+ * such as PBKDF2WithHmacSHA256. To choose the number of iterations, the server
+ * can measure how long hashing takes on this machine, and pick the number that
+ * takes about as long as we are willing to let a login take.
+ */
+public class HashPolicy {
+	private static Logger logger = Logger.getLogger("");
+
+	// The policy of accounts saved before we recorded one
+	public static final HashPolicy LEGACY = new HashPolicy("PBKDF2WithHmacSHA1", 127);
+	private static final int HASH_BYTES = 64;
+
+	private static volatile HashPolicy current = LEGACY;
+
+	// Creating a SecretKeyFactory is surprisingly expensive, and an instance may
+	// not be shared between threads. Passwords are hashed by the few threads of
+	// the PasswordHasher, so each of them keeps its own.
+	private static final ThreadLocal<HashMap<String, SecretKeyFactory>> keyFactories = ThreadLocal
+			.withInitial(HashMap::new);
+
+	private final String algorithm;
+	private final int iterations;
+
+	public HashPolicy(String algorithm, int iterations) {
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * The policy for new hashes
+	 */
+	public static HashPolicy getCurrent() {
+		return current;
+	}
+
+	public static void setCurrent(HashPolicy policy) {
+		logger.info("Password hashing: " + policy);
+		current = policy;
+	}
+
+	/**
+	 * Find the number of iterations for which hashing one password with the given
+	 * algorithm takes about the given time on this machine. Throws an exception if
+	 * the algorithm does not exist, or if the result has fewer iterations than the
+	 * current policy: a slow machine or a small target must not weaken new hashes.
+	 */
+	public static HashPolicy calibrate(String algorithm, int targetMillis) throws GeneralSecurityException {
+		char[] password = "calibration".toCharArray();
+		byte[] salt = new byte[Account.SALT_BYTES];
+		HashPolicy policy = new HashPolicy(algorithm, 1000);
+		for (int round = 0; round < 5; round++) { // The first rounds also warm up the JIT
+			long start = System.nanoTime();
+			policy.hash(password, salt);
+			double millis = Math.max(0.01, (System.nanoTime() - start) / 1e6);
+			long iterations = (long) Math.min(Integer.MAX_VALUE, (long) policy.iterations * targetMillis / millis);
+			policy = new HashPolicy(algorithm, (int) Math.max(1, iterations));
+		}
+		int minimum = current.iterations;
+		if (policy.iterations < minimum) throw new IllegalArgumentException(
+				"calibrated " + policy.iterations + " iterations, fewer than the minimum of " + minimum);
+		return policy;
+	}
+
+	/**
+	 * Hash a password with the given salt
+	 */
+	public byte[] hash(char[] password, byte[] salt) throws GeneralSecurityException {
+		HashMap<String, SecretKeyFactory> factories = keyFactories.get();
+		SecretKeyFactory skf = factories.get(algorithm);
+		if (skf == null) {
+			skf = SecretKeyFactory.getInstance(algorithm);
+			factories.put(algorithm, skf);
+		}
+		PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BYTES * 8);
+		try {
+			return skf.generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == null || o.getClass() != this.getClass()) return false;
+		HashPolicy op = (HashPolicy) o;
+		return op.algorithm.equals(this.algorithm) && op.iterations == this.iterations;
+	}
+
+	@Override
+	public int hashCode() {
+		return algorithm.hashCode() * 31 + iterations;
+	}
+
+	@Override
+	public String toString() {
+		return algorithm + " with " + iterations + " iterations";
+	}
+}
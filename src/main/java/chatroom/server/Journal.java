@@ -0,0 +1,445 @@
+package chatroom.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every change to accounts and chatrooms: created,
+ * deleted, password changed, user joined or left. Together with the last saved
+ * Snapshot (accounts.snap and chatrooms.snap), it contains everything we know; at
+ * startup, we read the snapshot and then replay the journal.
+ *
+ * Whoever makes a change only adds a record to a queue. A single writer thread
+ * takes all records that are waiting, writes them at once, and syncs the file
+ * to disk once for all of them ("group commit"). If the server crashes, only
+ * the records of the last batch can be lost. Each record carries a CRC, so that
+ * a record that was only partly written is recognized and ignored. Replay stops
+ * at such a record, so nothing may be written after it: if writing a batch
+ * fails, we cut the file back to the end of the last good batch. If even that
+ * fails, we stop journaling, and save snapshots instead.
+ *
+ * From time to time, we compact the journal: the writer starts a new journal
+ * file, we save a snapshot, and then delete the old journal. The snapshot is
+ * taken while changes continue, so it may already contain some changes that
+ * are also in the new journal. That does not matter, since every record sets a
+ * state ("this account has this password", "this user is a member"); replaying
+ * it a second time changes nothing. The journal, and therefore the time to
+ * replay it, never grows much beyond COMPACT_BYTES.
+ *
+ * Compaction runs on a thread of its own, started by the writer when the journal
+ * has grown too large, or by the cleanup thread when it is time. Saving holds no
+ * locks during any I/O: we copy the list of accounts and chatrooms, which only
+ * copies references, and each one is locked only for the moment it takes to
+ * encode it into memory. Logins and other requests never wait for the disk.
+ *
+ * Records are written in the order in which the changes were made. For this,
+ * a change and its record are made while holding the lock for that name.
+ */
+public class Journal {
+	private static Logger logger = Logger.getLogger("");
+	private static final String JOURNAL_FILE = "journal.log";
+	private static final String OLD_JOURNAL_FILE = "journal.old"; // Only exists during compaction
+	private static final long COMPACT_BYTES = 16 * 1024 * 1024;
+	private static final long COMPACT_MILLIS = 3600 * 1000; // Also saves the last login times
+
+	// Record types
+	static final byte ACCOUNT = 1; // An account, new or changed
+	static final byte ACCOUNT_DELETED = 2;
+	static final byte CHATROOM = 3; // A new chatroom
+	static final byte CHATROOM_DELETED = 4;
+	static final byte JOINED = 5;
+	static final byte LEFT = 6;
+
+	private static volatile boolean open = false; // Changes during startup are not recorded
+	private static final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+	private static FileChannel channel; // Only used by the writer thread, once open
+	private static final AtomicLong journalBytes = new AtomicLong();
+	private static volatile long lastCompaction = System.currentTimeMillis();
+	private static final AtomicBoolean compacting = new AtomicBoolean(false);
+	private static volatile boolean rotationFailed = false; // We are still writing to journal.old
+	private static volatile boolean stopped = false; // Writing failed, and the file could not be repaired
+
+	/**
+	 * A record to write, or a request to the writer thread
+	 */
+	private static class Entry {
+		private final byte[] record; // null for requests
+		private final boolean rotate; // Start a new journal file
+		private final CompletableFuture<Void> done;
+
+		private Entry(byte[] record, boolean rotate, CompletableFuture<Void> done) {
+			this.record = record;
+			this.rotate = rotate;
+			this.done = done;
+		}
+	}
+
+	/**
+	 * Something that can write itself as a record
+	 */
+	interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Replay the journal on top of the snapshot that has already been read, and
+	 * start recording changes -- called at startup, before any clients connect
+	 */
+	public static void open() {
+		Path journal = Paths.get(Server.getHome() + JOURNAL_FILE);
+		Path oldJournal = Paths.get(Server.getHome() + OLD_JOURNAL_FILE);
+		try {
+			if (Files.exists(oldJournal)) replay(oldJournal, Journal::apply); // Compaction did not finish
+			long validBytes = Files.exists(journal) ? replay(journal, Journal::apply) : 0;
+			channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channel.truncate(validBytes); // Anything after the last valid record
+			channel.position(validBytes);
+			journalBytes.set(validBytes);
+		} catch (IOException e) {
+			logger.severe("Unable to open journal - changes will not be saved: " + e.getMessage());
+			return;
+		}
+
+		Thread writer = new Thread(Journal::writeRecords, "JournalThread");
+		writer.setDaemon(true);
+		writer.start();
+		open = true;
+
+		// Write whatever is waiting when the server is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				request(false).get(5, TimeUnit.SECONDS);
+			} catch (Exception e) {
+				// Nothing more we can do
+			}
+		}));
+	}
+
+	/**
+	 * Apply all valid records in the file. Returns the length of the valid part;
+	 * anything after it was only partly written.
+	 */
+	static long replay(Path file, Snapshot.Reader reader) throws IOException {
+		long validBytes = 0;
+		int records = 0;
+		CRC32 crc = new CRC32();
+		try (InputStream fileIn = Files.newInputStream(file);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 65536))) {
+			while (true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					if (length <= 0 || length > 1024 * 1024) break;
+					record = new byte[length];
+					in.readFully(record);
+					crc.reset();
+					crc.update(record, 0, length);
+					if (in.readInt() != (int) crc.getValue()) break;
+				} catch (EOFException e) {
+					break;
+				}
+				reader.read(new DataInputStream(new ByteArrayInputStream(record)));
+				validBytes += 8 + record.length;
+				records++;
+			}
+		}
+		logger.info("Replayed " + records + " records from " + file.getFileName());
+		return validBytes;
+	}
+
+	private static void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == ACCOUNT) {
+			Account.restore(Account.read(in));
+		} else if (type == ACCOUNT_DELETED) {
+			Account.forget(in.readUTF());
+		} else if (type == CHATROOM) {
+			Chatroom.restore(Chatroom.read(in));
+		} else if (type == CHATROOM_DELETED) {
+			Chatroom.forget(in.readUTF());
+		} else if (type == JOINED || type == LEFT) {
+			Chatroom chatroom = Chatroom.exists(in.readUTF());
+			String username = in.readUTF();
+			if (chatroom != null && type == JOINED) chatroom.addUser(username);
+			if (chatroom != null && type == LEFT) chatroom.removeUser(username);
+		} else {
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	/**
+	 * Record a change. Only the record is made here; it is written shortly after.
+	 */
+	static void record(byte type, RecordWriter writer) {
+		if (!open) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(type);
+			writer.write(out);
+		} catch (IOException e) {
+			return; // Cannot happen when writing to memory
+		}
+		queue.add(new Entry(bytes.toByteArray(), false, null));
+	}
+
+	static void record(byte type, String name) {
+		record(type, out -> out.writeUTF(name));
+	}
+
+	static void record(byte type, String chatroom, String username) {
+		record(type, out -> {
+			out.writeUTF(chatroom);
+			out.writeUTF(username);
+		});
+	}
+
+	/**
+	 * Ask the writer thread to write everything queued so far, and possibly start
+	 * a new file. The future completes when this is done.
+	 */
+	private static CompletableFuture<Void> request(boolean rotate) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		if (open) queue.add(new Entry(null, rotate, done));
+		else done.complete(null);
+		return done;
+	}
+
+	/**
+	 * The writer thread: write whatever is waiting, one batch at a time
+	 */
+	private static void writeRecords() {
+		ArrayList<Entry> batch = new ArrayList<>();
+		CRC32 crc = new CRC32();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				int start = 0;
+				for (int i = 0; i < batch.size(); i++) {
+					Entry entry = batch.get(i);
+					if (entry.record == null) { // A request: first write everything before it
+						write(batch, start, i, crc);
+						try {
+							if (entry.rotate && open) rotate();
+							entry.done.complete(null);
+						} catch (IOException e) {
+							entry.done.completeExceptionally(e);
+						}
+						start = i + 1;
+					}
+				}
+				write(batch, start, batch.size(), crc);
+				if (journalBytes.get() > COMPACT_BYTES) compactIfNeeded();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				logger.severe("Unable to write journal: " + e.getMessage());
+				if (!channel.isOpen()) stop();
+				for (Entry entry : batch) {
+					if (entry.done != null) entry.done.completeExceptionally(e); // If not already done
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Write the given records, each with its length and CRC, and sync the file
+	 */
+	private static void write(ArrayList<Entry> batch, int from, int to, CRC32 crc) throws IOException {
+		if (from == to || !open) return;
+		int length = 0;
+		for (int i = from; i < to; i++) length += 8 + batch.get(i).record.length;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (int i = from; i < to; i++) {
+			byte[] record = batch.get(i).record;
+			crc.reset();
+			crc.update(record, 0, record.length);
+			buffer.putInt(record.length).put(record).putInt((int) crc.getValue());
+		}
+		buffer.flip();
+		journalBytes.set(append(channel, journalBytes.get(), buffer));
+	}
+
+	/**
+	 * Write the buffer after the valid part of the file, and sync the file.
+	 * Returns the new length of the valid part.
+	 * 
+	 * If this fails, part of the buffer may have been written; we cut the file
+	 * back to the valid part, so the next batch does not follow a broken record.
+	 * If that fails too, the channel is closed.
+	 */
+	static long append(FileChannel channel, long validBytes, ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		try {
+			while (buffer.hasRemaining()) channel.write(buffer);
+			channel.force(false);
+			return validBytes + length;
+		} catch (IOException e) {
+			try {
+				channel.truncate(validBytes);
+				channel.position(validBytes);
+				channel.force(false);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+				try {
+					channel.close();
+				} catch (IOException e3) {
+					// It is unusable either way
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writing failed, and the file could not be repaired. Stop recording changes;
+	 * from now on, the cleanup thread saves a snapshot every time.
+	 */
+	private static void stop() {
+		logger.severe("The journal is broken - changes are no longer journaled, only saved in snapshots");
+		stopped = true;
+		open = false;
+	}
+
+	/**
+	 * Start a new journal file. The old one is kept until a snapshot has been saved.
+	 * 
+	 * The current file stays open until the new one is ready. If anything fails,
+	 * we put the file back and keep writing to it; the next compaction tries again.
+	 */
+	private static void rotate() throws IOException {
+		Path journal = Paths.get(Server.getHome() + JOURNAL_FILE);
+		Path oldJournal = Paths.get(Server.getHome() + OLD_JOURNAL_FILE);
+		Files.move(journal, oldJournal, StandardCopyOption.ATOMIC_MOVE);
+		FileChannel newChannel;
+		try {
+			newChannel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			try {
+				Files.move(oldJournal, journal, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e2) {
+				// We still write to the same file, now named journal.old; it is
+				// replayed at startup, but compaction must not delete it
+				logger.severe("Unable to restore " + JOURNAL_FILE + ": " + e2.getMessage());
+				rotationFailed = true;
+			}
+			throw e;
+		}
+		FileChannel previous = channel;
+		channel = newChannel;
+		journalBytes.set(0);
+		rotationFailed = false;
+		try {
+			previous.close();
+		} catch (IOException e) {
+			// Everything in it has been synced already
+		}
+	}
+
+	/**
+	 * Compact the journal if it has grown large, or if it is time to save the last
+	 * login times -- called by the writer and the cleanup thread. Compaction runs
+	 * in the background; this method returns at once.
+	 * 
+	 * If the journal could not be opened, nothing is recorded; then we save a
+	 * snapshot every time the cleanup thread calls, as older versions did.
+	 */
+	public static void compactIfNeeded() {
+		if (compacting.get()) return;
+		if (!open) {
+			inBackground(Journal::saveWithoutJournal);
+			return;
+		}
+		boolean unfinished = Files.exists(Paths.get(Server.getHome() + OLD_JOURNAL_FILE));
+		long age = System.currentTimeMillis() - lastCompaction;
+		if (rotationFailed) {
+			// The journal cannot be shortened; only save the last login times
+			// now and then
+			if (age > COMPACT_MILLIS) inBackground(Journal::compact);
+		} else if (unfinished || journalBytes.get() > COMPACT_BYTES || age > COMPACT_MILLIS) {
+			inBackground(Journal::compact);
+		}
+	}
+
+	/**
+	 * Save a snapshot when there is no journal. If the journal was stopped, its
+	 * records are older than the snapshot; they must not be replayed on top of
+	 * it at the next start, so we delete the journal files.
+	 */
+	private static void saveWithoutJournal() {
+		if (Account.saveAccounts() & Chatroom.saveChatrooms()) {
+			logger.info("Snapshot saved (no journal)");
+			if (stopped) try {
+				Files.deleteIfExists(Paths.get(Server.getHome() + JOURNAL_FILE));
+				Files.deleteIfExists(Paths.get(Server.getHome() + OLD_JOURNAL_FILE));
+			} catch (IOException e) {
+				logger.severe("Unable to delete the broken journal: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Run a compaction or snapshot on a thread of its own, unless one is running
+	 */
+	private static void inBackground(Runnable task) {
+		if (!compacting.compareAndSet(false, true)) return; // Someone else was faster
+		Thread compactor = new Thread(() -> {
+			try {
+				task.run();
+			} finally {
+				compacting.set(false);
+			}
+		}, "SnapshotThread");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Start a new journal, save a snapshot, and delete the old journal. If a
+	 * previous compaction did not finish, the old journal still exists; then we
+	 * keep using the current journal, which is just as good. Returns when the
+	 * snapshot has been saved.
+	 */
+	public static synchronized void compact() {
+		long start = System.currentTimeMillis();
+		Path oldJournal = Paths.get(Server.getHome() + OLD_JOURNAL_FILE);
+		try {
+			if (!rotationFailed && !Files.exists(oldJournal)) request(true).get();
+			if (Account.saveAccounts() & Chatroom.saveChatrooms()) {
+				if (!rotationFailed) Files.deleteIfExists(oldJournal);
+				lastCompaction = System.currentTimeMillis();
+				logger.info("Journal compacted in " + (lastCompaction - start) + " ms");
+			}
+		} catch (Exception e) {
+			logger.severe("Unable to compact journal: " + e.getMessage());
+		}
+	}
+
+	public static long getJournalBytes() {
+		return journalBytes.get();
+	}
+}
@@ -0,0 +1,28 @@
+package chatroom.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accounts and chatrooms share one set of names: a name may belong to an
+ * account or to a chatroom, but not to both. Checking the other registry and
+ * adding to our own must therefore happen as one step. Rather than one lock for
+ * all names, we use a fixed number of locks, chosen by the hash of the name, so
+ * that creating different names hardly ever waits. Finding an account or a
+ * chatroom never locks at all.
+ */
+public class NameLocks {
+	private static final ReentrantLock[] locks = new ReentrantLock[64]; // Must be a power of 2
+	static {
+		for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * The lock for the given name. Hold it while checking that the name is free,
+	 * and adding it.
+	 */
+	public static ReentrantLock forName(String name) {
+		int hash = name.hashCode();
+		hash ^= (hash >>> 16); // Use the high bits too, as HashMap does
+		return locks[hash & (locks.length - 1)];
+	}
+}
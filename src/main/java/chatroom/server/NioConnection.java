@@ -0,0 +1,216 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chatroom.server.message.Message;
+import chatroom.server.message.Tokenizer;
+
+/**
+ * One connection of the non-blocking server. The event loop hands us whatever
+ * bytes have arrived; we cut them into lines, and pass each complete line on to
+ * the client as a message. A line may arrive in several pieces, or several
+ * lines may arrive at once. While a message is being processed on another
+ * thread, such as a login waiting for its password to be hashed, we stop
+ * reading, so that the client's messages are still handled in order.
+ *
+ * Outgoing messages wait in the client's outbound queue, and are written by the
+ * event loop whenever the socket can take more data. Messages may be queued
+ * from any thread.
+ */
+public class NioConnection implements Connection {
+	private static final int MAX_LINE_LENGTH = 64 * 1024; // No valid message is this long
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final EventLoopThread eventLoop;
+	private final Client client;
+
+	// The start of a line whose end has not arrived yet. Only allocated when needed,
+	// so that idle connections use as little memory as possible
+	private byte[] partialLine = null;
+	private int partialLength = 0;
+
+	private final Tokenizer tokens = new Tokenizer();
+
+	private ByteBuffer current = null; // The message being written; only used by the event loop
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	public NioConnection(SocketChannel channel, SelectionKey key, EventLoopThread eventLoop) {
+		this.channel = channel;
+		this.key = key;
+		this.eventLoop = eventLoop;
+		this.client = new Client(this);
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override // Connection
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	public Client getClient() {
+		return client;
+	}
+
+	/**
+	 * Read whatever has arrived, and process all complete lines -- called by the
+	 * event loop
+	 */
+	void read(ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		int numBytes = channel.read(buffer);
+		if (numBytes < 0) throw new IOException("Connection closed by client");
+		process(buffer.array(), numBytes);
+	}
+
+	/**
+	 * Process the complete lines in the given bytes, and keep the rest for later.
+	 * If a message finishes its processing on another thread, we keep the lines
+	 * after it as well, and stop reading from the client until it is done. Returns
+	 * false in that case.
+	 */
+	private boolean process(byte[] bytes, int numBytes) throws IOException {
+		int start = 0;
+		for (int i = 0; i < numBytes && channel.isOpen(); i++) {
+			if (bytes[i] == '\n') {
+				if (partialLength > 0) {
+					appendPartial(bytes, start, i - start);
+					tokenizeLine(partialLine, 0, partialLength);
+					partialLine = null;
+					partialLength = 0;
+				} else {
+					tokenizeLine(bytes, start, i - start);
+				}
+				start = i + 1;
+				client.handle(Message.parse(tokens));
+
+				CompletableFuture<?> unfinished = client.takePending();
+				if (unfinished != null) {
+					if (start < numBytes) appendPartial(bytes, start, numBytes - start);
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					unfinished.whenComplete((result, e) -> eventLoop.execute(this::resume));
+					return false;
+				}
+			}
+		}
+		if (start < numBytes) appendPartial(bytes, start, numBytes - start);
+		return true;
+	}
+
+	/**
+	 * The message we were waiting for is done: process the lines that arrived in
+	 * the meantime, and start reading again
+	 */
+	private void resume() {
+		if (!key.isValid()) return;
+		byte[] saved = partialLine;
+		int savedLength = partialLength;
+		partialLine = null;
+		partialLength = 0;
+		try {
+			if ((saved == null || process(saved, savedLength)) && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		} catch (Exception e) {
+			close();
+		}
+	}
+
+	private void appendPartial(byte[] bytes, int offset, int length) throws IOException {
+		if (partialLength + length > MAX_LINE_LENGTH) throw new IOException("Line too long");
+		if (partialLine == null) {
+			partialLine = new byte[Math.max(256, length)];
+		} else if (partialLength + length > partialLine.length) {
+			byte[] larger = new byte[Math.max(partialLine.length * 2, partialLength + length)];
+			System.arraycopy(partialLine, 0, larger, 0, partialLength);
+			partialLine = larger;
+		}
+		System.arraycopy(bytes, offset, partialLine, partialLength, length);
+		partialLength += length;
+	}
+
+	private void tokenizeLine(byte[] bytes, int offset, int length) {
+		if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+		tokens.reset(bytes, offset, length);
+	}
+
+	/**
+	 * Write the waiting messages. If we are on the event loop, we try to write them
+	 * immediately; otherwise the event loop will write them shortly.
+	 */
+	@Override // Connection
+	public void drain() {
+		if (eventLoop.inEventLoop()) {
+			try {
+				flush();
+			} catch (IOException e) {
+				close();
+			}
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(() -> {
+				flushScheduled.set(false);
+				try {
+					flush();
+				} catch (IOException e) {
+					close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write as much as the socket will take -- only called on the event loop. If
+	 * anything remains, we ask to be told when the socket is writable again.
+	 */
+	void flush() throws IOException {
+		if (!key.isValid()) return;
+		OutboundQueue outbound = client.getOutbound();
+		while (true) {
+			if (current == null) {
+				Message msg = outbound.poll();
+				if (msg == null) break;
+				current = msg.toBuffer(); // Shared with the other recipients, never copied
+			}
+			channel.write(current);
+			if (current.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			current = null;
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Close the connection, ignoring any errors. Other threads close a connection
+	 * too (a client that is too slow, or has expired); then the event loop does
+	 * it, since it may be in the middle of writing to it.
+	 */
+	@Override // Connection
+	public void close() {
+		if (eventLoop.inEventLoop()) closeNow();
+		else eventLoop.execute(this::closeNow);
+	}
+
+	private void closeNow() {
+		if (!channel.isOpen()) return; // Already closed
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// We don't care about any errors
+		}
+		current = null;
+		client.getOutbound().clear();
+		client.disconnected();
+	}
+}
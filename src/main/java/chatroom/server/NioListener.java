@@ -0,0 +1,61 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * The non-blocking alternative to the ListenerThread. Instead of one thread per
+ * client, a small, fixed number of event loops handle all connections. The
+ * first event loop also accepts new connections, which are then handed out to
+ * the event loops in turn.
+ *
+ * This mode does not support SecureSockets.
+ */
+public class NioListener {
+	private static Logger logger = Logger.getLogger("");
+	private static final int BACKLOG = 1024; // Many clients may connect at once
+
+	private final ServerSocketChannel listener;
+	private final EventLoopThread[] eventLoops;
+	private final int port;
+	private int nextEventLoop = 0; // Only used by the first event loop
+
+	public NioListener(int port, int numEventLoops) throws IOException {
+		this.port = port;
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port), BACKLOG);
+		listener.configureBlocking(false);
+
+		eventLoops = new EventLoopThread[numEventLoops];
+		for (int i = 0; i < numEventLoops; i++) {
+			eventLoops[i] = new EventLoopThread(i);
+		}
+	}
+
+	public void start() {
+		logger.info("Starting non-blocking listener on port " + port + " with " + eventLoops.length + " event loops");
+		for (EventLoopThread eventLoop : eventLoops) {
+			eventLoop.start();
+		}
+		eventLoops[0].registerListener(this);
+	}
+
+	ServerSocketChannel getChannel() {
+		return listener;
+	}
+
+	/**
+	 * Accept all waiting connections -- called by the first event loop, whenever
+	 * the listener is ready
+	 */
+	void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = listener.accept()) != null) {
+			eventLoops[nextEventLoop].register(channel);
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		}
+	}
+}
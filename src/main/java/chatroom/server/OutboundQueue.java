@@ -0,0 +1,126 @@
+package chatroom.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import chatroom.server.message.Message;
+
+/**
+ * The messages waiting to be sent to one client. Sending a message only puts it
+ * into this queue; the connection writes the messages out in the background.
+ * This way, a slow client cannot hold up whoever is sending to it.
+ *
+ * The queue has a limited size. What happens when it is full depends on the
+ * overflow policy:
+ *
+ * - drop-oldest: throw away the oldest waiting message to make room
+ *
+ * - disconnect: the client is too slow, and is disconnected
+ *
+ * - block: the sender waits for room (a few seconds at most, after which the
+ * client is disconnected). An event loop of the non-blocking server never
+ * waits, since it may be the very thread that would make room.
+ */
+public class OutboundQueue {
+	public enum OverflowPolicy {
+		DROP_OLDEST, DISCONNECT, BLOCK
+	}
+
+	private static Logger logger = Logger.getLogger("");
+	private static final long BLOCK_SECONDS = 5;
+	private static int capacity = 1000;
+	private static OverflowPolicy policy = OverflowPolicy.DISCONNECT;
+
+	// Totals over all clients, for the log
+	private static final AtomicLong totalDropped = new AtomicLong();
+	private static final AtomicLong totalOverflows = new AtomicLong();
+
+	// Not an ArrayBlockingQueue: that allocates room for all messages up front,
+	// for every client, even though most queues are empty nearly all the time
+	private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>(capacity);
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Set the size and overflow policy for all queues created from now on. The
+	 * policy is given as in the server options, e.g. "drop-oldest". Invalid
+	 * values are logged, and leave the current setting unchanged.
+	 */
+	public static void configure(int newCapacity, String newPolicy) {
+		if (newCapacity > 0) capacity = newCapacity;
+		else logger.warning("Invalid outbound queue capacity " + newCapacity + " - using " + capacity);
+		try {
+			policy = OverflowPolicy.valueOf(newPolicy.trim().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			logger.warning("Unknown overflow policy " + newPolicy + " - using " + policy);
+		}
+	}
+
+	public static OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public static long getTotalDropped() {
+		return totalDropped.get();
+	}
+
+	public static long getTotalOverflows() {
+		return totalOverflows.get();
+	}
+
+	/**
+	 * Queue a message. Returns false if the queue is full and, according to the
+	 * overflow policy, the client should be disconnected.
+	 */
+	public boolean add(Message msg) {
+		if (messages.offer(msg)) return true;
+
+		totalOverflows.incrementAndGet();
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			do {
+				if (messages.poll() != null) {
+					dropped.incrementAndGet();
+					totalDropped.incrementAndGet();
+				}
+			} while (!messages.offer(msg));
+			return true;
+		} else if (policy == OverflowPolicy.BLOCK && !(Thread.currentThread() instanceof EventLoopThread)) {
+			try {
+				return messages.offer(msg, BLOCK_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take the next message to be sent, or null if there is none
+	 */
+	public Message poll() {
+		return messages.poll();
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	public void clear() {
+		messages.clear();
+	}
+
+	/**
+	 * The number of messages waiting to be sent
+	 */
+	public int size() {
+		return messages.size();
+	}
+
+	/**
+	 * The number of messages thrown away because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+}
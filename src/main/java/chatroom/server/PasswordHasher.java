@@ -0,0 +1,101 @@
+package chatroom.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hashing a password is slow on purpose, and uses the CPU the whole time. If
+ * the threads that read from clients did it themselves, a burst of logins would
+ * keep them all busy, and nobody would receive any messages. Instead, logins and
+ * password changes hand the hashing to this small pool of threads, and reply
+ * when it is done.
+ *
+ * The pool has a limited number of threads, so hashing can never use all of the
+ * CPU, and a limited queue. If the queue is full, the request is rejected right
+ * away, and the client receives a failed result.
+ *
+ * For the log, we measure how long requests wait in the queue, and how long the
+ * hashing itself takes.
+ */
+public class PasswordHasher {
+	private static Logger logger = Logger.getLogger("");
+
+	private static int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private static int queueSize = 256;
+	private static volatile ThreadPoolExecutor pool = null; // Only created when needed
+
+	private static final AtomicLong hashed = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong waitNanos = new AtomicLong();
+	private static final AtomicLong hashNanos = new AtomicLong();
+
+	/**
+	 * Set the number of hashing threads, and the number of requests that may wait.
+	 * Must be called before the first password is hashed.
+	 */
+	public static void configure(int newNumThreads, int newQueueSize) {
+		if (newNumThreads > 0) numThreads = newNumThreads;
+		else logger.warning("Invalid number of hashing threads " + newNumThreads + " - using " + numThreads);
+		if (newQueueSize > 0) queueSize = newQueueSize;
+		else logger.warning("Invalid hashing queue size " + newQueueSize + " - using " + queueSize);
+	}
+
+	/**
+	 * Run a task that hashes a password. Returns the future result, or null if
+	 * too many tasks are already waiting.
+	 */
+	public static <T> CompletableFuture<T> submit(Callable<T> task) {
+		if (pool == null) createPool();
+		CompletableFuture<T> result = new CompletableFuture<>();
+		long queued = System.nanoTime();
+		try {
+			pool.execute(() -> {
+				long started = System.nanoTime();
+				waitNanos.addAndGet(started - queued);
+				T value = null;
+				Throwable error = null;
+				try {
+					value = task.call();
+				} catch (Throwable e) {
+					error = e;
+				}
+				hashNanos.addAndGet(System.nanoTime() - started);
+				hashed.incrementAndGet();
+				if (error == null) result.complete(value);
+				else result.completeExceptionally(error);
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		return result;
+	}
+
+	private static synchronized void createPool() {
+		if (pool == null) {
+			pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(queueSize), r -> {
+						Thread t = new Thread(r, "HashThread");
+						t.setDaemon(true);
+						return t;
+					});
+		}
+	}
+
+	/**
+	 * A summary of the measurements, for the log
+	 */
+	public static String getStatistics() {
+		long count = hashed.get();
+		double avgWait = (count == 0) ? 0 : waitNanos.get() / 1e6 / count;
+		double avgHash = (count == 0) ? 0 : hashNanos.get() / 1e6 / count;
+		return String.format("%d passwords hashed, %d rejected; average %.1f ms waiting, %.1f ms hashing", count,
+				rejected.get(), avgWait, avgHash);
+	}
+}
@@ -8,21 +8,20 @@
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import chatroom.server.message.Message;
+
 public class Server {
 	private static final Logger logger = Logger.getLogger("");
 	private static int port = -1;
 	private static String homeDirectory = "";
 	private static boolean secure = false;
+	private static boolean nonBlocking = false;
+	private static boolean virtualThreads = false;
 	
 	public static void main(String[] args) {
 		// Setup logging, including a file handler
 		setupLogging();
 		
-		// Reload any existing chatrooms and accounts
-		logger.info("Read any existing data");
-		Chatroom.readChatrooms();
-		Account.readAccounts();
-		
 		try {
 			// Read command-line parameters, if they exist - otherwise read from the console
 			if (args.length > 0) {
@@ -30,13 +29,65 @@ public static void main(String[] args) {
 				port = Integer.parseInt(args[0]);
 				if (args.length > 1) homeDirectory = args[1];
 				if (args.length > 2) secure = args[2].equalsIgnoreCase("yes");
+				if (args.length > 3) {
+					nonBlocking = args[3].equalsIgnoreCase("nio");
+					virtualThreads = args[3].equalsIgnoreCase("virtual");
+				}
 			} else {
 				readOptions();
 			}
 			
+			// Reload any existing chatrooms and accounts, from the home directory
+			logger.info("Read any existing data");
+			Chatroom.readChatrooms();
+			Account.readAccounts();
+			Journal.open(); // Replays the changes made since the data was saved
+
+			// Outbound queues: how many messages may wait for a slow client, and what
+			// to do when there are too many (drop-oldest, disconnect or block)
+			OutboundQueue.configure(Integer.getInteger("chatroom.outbound.capacity", 1000),
+					System.getProperty("chatroom.outbound.overflow", "disconnect"));
+
+			// Password hashing: how many threads may hash at once, and how many
+			// requests may wait
+			PasswordHasher.configure(
+					Integer.getInteger("chatroom.hash.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+					Integer.getInteger("chatroom.hash.queue", 256));
+
+			// The hash policy for new passwords. Either the number of iterations is
+			// given, or we choose it so that hashing takes about the target time
+			String algorithm = System.getProperty("chatroom.hash.algorithm", HashPolicy.LEGACY.getAlgorithm());
+			Integer targetMillis = Integer.getInteger("chatroom.hash.targetMillis");
+			try {
+				if (targetMillis != null) {
+					HashPolicy.setCurrent(HashPolicy.calibrate(algorithm, targetMillis));
+				} else {
+					HashPolicy policy = new HashPolicy(algorithm,
+							Integer.getInteger("chatroom.hash.iterations", HashPolicy.LEGACY.getIterations()));
+					policy.hash("check".toCharArray(), new byte[Account.SALT_BYTES]); // Does the algorithm exist?
+					HashPolicy.setCurrent(policy);
+				}
+			} catch (GeneralSecurityException | IllegalArgumentException e) {
+				logger.warning("Unable to hash passwords with " + algorithm + " (" + e.getMessage() + ") - using "
+						+ HashPolicy.LEGACY);
+			}
+
 			// Start the listener
-			ListenerThread lt = new ListenerThread(port, secure);
-			lt.start();
+			if (nonBlocking && secure) {
+				logger.warning("The non-blocking server does not support SecureSockets - using one thread per client");
+				nonBlocking = false;
+			}
+			if (nonBlocking) {
+				NioListener nl = new NioListener(port, Runtime.getRuntime().availableProcessors());
+				nl.start();
+			} else {
+				ListenerThread lt = new ListenerThread(port, secure);
+				if (virtualThreads && ClientThreads.useVirtualThreads()) {
+					ClientThreads.start(lt);
+				} else {
+					lt.start();
+				}
+			}
 			
 			// Start the clean-up thread
 			CleanupThread ct = new CleanupThread();
@@ -53,10 +104,13 @@ private static void setupLogging() {
 		logger.setLevel(Level.FINE);
 		logger.getHandlers()[0].setLevel(Level.WARNING); // Standard (console) handler
 		try {
+			// The file is written by a thread of its own, so that logging never waits
+			// for the disk
 			FileHandler fh = new FileHandler("%h/ChatroomServer_%u_%g.log", 10000000, 2);
 			fh.setFormatter(new SimpleFormatter());
 			fh.setLevel(Level.FINE);
-			logger.addHandler(fh);
+			logger.addHandler(new AsyncHandler(fh, Math.max(1, Integer.getInteger("chatroom.log.queue", 8192))));
+			Message.setLogPayloads(Boolean.getBoolean("chatroom.log.payloads"));
 		} catch (Exception e) {
 			logger.severe("Unable to create file handler for logging: " + e.toString());
 			throw new RuntimeException("Unable to initialize log files: " + e.toString());
@@ -84,6 +138,12 @@ private static void readOptions() {
 			System.out.println("Enter 'yes' if the server should use SecureSockets");
 			s = in.nextLine().trim();
 			secure = s.equalsIgnoreCase("yes");
+
+			System.out.println("Enter 'nio' if the server should use non-blocking I/O, or 'virtual' for one virtual thread"
+					+ " per client (leave empty for one thread per client)");
+			s = in.nextLine().trim();
+			nonBlocking = s.equalsIgnoreCase("nio");
+			virtualThreads = s.equalsIgnoreCase("virtual");
 		}
 	}
 	
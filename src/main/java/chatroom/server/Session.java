@@ -0,0 +1,89 @@
+package chatroom.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A login session: created when a client logs in, and identified by the token
+ * that the client must send with every message that requires a login.
+ *
+ * At the class level, we keep all sessions in a map by token, so checking a
+ * token is a single lookup. A session expires if it is not used for an hour.
+ * Rather than checking every session, the cleanup thread only looks at the
+ * sessions that are due, using an ExpiryQueue.
+ */
+public class Session {
+	private static Logger logger = Logger.getLogger("");
+	private static final long TTL_MILLIS = 3600 * 1000; // 1 hour
+
+	private static final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private static final ExpiryQueue<Session> expiryChecks = new ExpiryQueue<>();
+
+	private final String token;
+	private final Client client;
+	private volatile long expires;
+
+	/**
+	 * Log the client in with a new session, ending any session it already had.
+	 * Returns the new token.
+	 */
+	public static String create(Client client) {
+		invalidate(client.getToken());
+		Session session = new Session(Account.getToken(), client);
+		sessions.put(session.token, session);
+		client.setToken(session.token);
+		expiryChecks.add(session, session.expires);
+		return session.token;
+	}
+
+	/**
+	 * Is the token valid, and does it belong to this client? Using a session
+	 * extends its lifetime.
+	 */
+	public static boolean authenticate(Client client, String token) {
+		if (token == null) return false;
+		Session session = sessions.get(token);
+		if (session == null || session.client != client) return false;
+		long now = CoarseClock.now();
+		if (session.expires < now) {
+			invalidate(token);
+			return false;
+		}
+		session.expires = now + TTL_MILLIS;
+		return true;
+	}
+
+	/**
+	 * Returns the client that holds the given token, or null
+	 */
+	public static Client findClient(String token) {
+		if (token == null) return null;
+		Session session = sessions.get(token);
+		return (session != null) ? session.client : null;
+	}
+
+	/**
+	 * End a session: the token is no longer valid
+	 */
+	public static void invalidate(String token) {
+		if (token == null) return;
+		Session session = sessions.remove(token);
+		if (session != null) session.client.clearToken(token);
+	}
+
+	/**
+	 * Remove expired sessions -- called by cleanup thread
+	 */
+	public static void expireSessions() {
+		int expired = expiryChecks.expire(
+				session -> (sessions.get(session.token) == session) ? session.expires : Long.MAX_VALUE,
+				session -> invalidate(session.token));
+		logger.fine("Cleanup sessions: " + expired + " sessions expired, " + sessions.size() + " active");
+	}
+
+	private Session(String token, Client client) {
+		this.token = token;
+		this.client = client;
+		this.expires = CoarseClock.now() + TTL_MILLIS;
+	}
+}
@@ -0,0 +1,195 @@
+package chatroom.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The file format of the saved accounts and chatrooms. Java serialization
+ * writes class descriptions, and is slow to read and write; a snapshot only
+ * contains the fields themselves, in the same form as the journal records.
+ *
+ * A snapshot starts with a header: the magic number, the format version, and
+ * the number of records. Each record is written as its length, its content,
+ * and a CRC of the content. If a record is damaged, we skip it, but can still
+ * read the records after it.
+ *
+ * A snapshot is written to a temporary file, which replaces the old snapshot
+ * once it is complete; a crash while saving leaves the old snapshot as it was.
+ * Reading loads the whole file into one buffer, and closes it before any
+ * record is processed. (We do not map the file: on Windows, a mapped file
+ * cannot be replaced until the mapping is garbage collected.)
+ */
+public class Snapshot {
+	private static Logger logger = Logger.getLogger("");
+
+	private static final int MAGIC = 0x43485253; // "CHRS"
+	private static final int VERSION = 1; // Increase when a record changes
+	private static final int HEADER_BYTES = 12;
+	private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+	/**
+	 * Writes one item as a record
+	 */
+	interface Writer<T> {
+		void write(T item, DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Reads one record, and does whatever is needed with it
+	 */
+	interface Reader {
+		void read(DataInputStream in) throws IOException;
+	}
+
+	/**
+	 * A ByteArrayOutputStream that lets us use its buffer directly
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		private RecordBuffer() {
+			super(256);
+		}
+
+		private byte[] bytes() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Reads the content of one record from the file buffer
+	 */
+	private static class BufferInput extends InputStream {
+		private final ByteBuffer buffer;
+
+		private BufferInput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+	/**
+	 * Save the items to the given file. Returns false if saving failed; the
+	 * previous file is then still there. A record larger than MAX_RECORD_BYTES
+	 * could not be read again, so it also makes saving fail.
+	 */
+	static <T> boolean save(Path file, Collection<T> items, Writer<T> writer) {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(items.size());
+			RecordBuffer record = new RecordBuffer();
+			DataOutputStream out = new DataOutputStream(record);
+			CRC32 crc = new CRC32();
+			for (T item : items) {
+				record.reset();
+				writer.write(item, out);
+				int length = record.size();
+				if (length > MAX_RECORD_BYTES)
+					throw new IOException("a record of " + length + " bytes is too large");
+				crc.reset();
+				crc.update(record.bytes(), 0, length);
+				if (buffer.remaining() < length + 8) {
+					writeAll(channel, buffer);
+					if (buffer.capacity() < length + 8) buffer = ByteBuffer.allocateDirect(length + 8);
+				}
+				buffer.putInt(length).put(record.bytes(), 0, length).putInt((int) crc.getValue());
+			}
+			writeAll(channel, buffer);
+			channel.force(true);
+		} catch (IOException e) {
+			logger.severe("Unable to save " + file.getFileName() + ": " + e.getMessage());
+			return false;
+		}
+		try {
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to save " + file.getFileName() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static void writeAll(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Read all records from the given file. Returns the number of records read,
+	 * not counting damaged ones. Throws an exception if the file is not a
+	 * snapshot, or if it ends early.
+	 */
+	static int read(Path file, Reader reader) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException(file.getFileName() + " is too large");
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) throw new IOException(file.getFileName() + " is incomplete");
+			}
+			buffer.flip();
+		}
+		if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC)
+			throw new IOException(file.getFileName() + " is not a snapshot");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException(file.getFileName() + " has unknown format version " + version);
+		int count = buffer.getInt();
+
+		int records = 0;
+		int damaged = 0;
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new BufferInput(buffer));
+		for (int i = 0; i < count; i++) {
+			if (buffer.remaining() < 4) throw new IOException(file.getFileName() + " is incomplete");
+			int length = buffer.getInt();
+			if (length < 0 || length > MAX_RECORD_BYTES || buffer.remaining() < length + 4)
+				throw new IOException(file.getFileName() + " is incomplete");
+			int start = buffer.position();
+			int end = start + length;
+
+			ByteBuffer content = buffer.duplicate();
+			content.limit(end);
+			crc.reset();
+			crc.update(content);
+			buffer.position(end);
+			if (buffer.getInt() != (int) crc.getValue()) {
+				damaged++;
+				continue;
+			}
+
+			buffer.position(start).limit(end);
+			reader.read(in);
+			buffer.limit(buffer.capacity()).position(end + 4);
+			records++;
+		}
+		if (damaged > 0) logger.severe(file.getFileName() + ": skipped " + damaged + " damaged records");
+		return records;
+	}
+}
@@ -0,0 +1,220 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chatroom.server.message.Message;
+import chatroom.server.message.Tokenizer;
+
+/**
+ * The connection to one client of the blocking server. We keep one buffer for
+ * reading and one for writing for as long as the client is connected, rather
+ * than creating new readers and writers for every message.
+ *
+ * Several lines may arrive at once. Anything we read past the end of a line
+ * stays in the buffer, and is returned by the next call to readLine().
+ *
+ * Messages are sent by a writer task, which takes them from the client's
+ * outbound queue and writes as many as are waiting in one go. Only one writer
+ * runs at a time, and it ends when the queue is empty.
+ *
+ * Only one thread may read.
+ */
+public class SocketConnection implements Connection {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_LINE_LENGTH = 64 * 1024; // No valid message is this long
+
+	private final Socket socket;
+	private final Client client;
+	private final InputStream in;
+	private final OutputStream out;
+
+	private byte[] readBuffer = new byte[BUFFER_SIZE];
+	private int readStart = 0; // Start of the data not yet returned
+	private int readEnd = 0; // End of the data read from the socket
+
+	private final Tokenizer tokens = new Tokenizer();
+
+	private byte[] writeBuffer = new byte[BUFFER_SIZE];
+	private int writeLength = 0;
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+
+	public SocketConnection(Socket socket, Client client) throws IOException {
+		this.socket = socket;
+		this.client = client;
+		// Clients may send several commands at once. The results are small, and
+		// without this, each one after the first waits for the client to
+		// acknowledge the previous one (which it may delay by up to 40 ms)
+		socket.setTcpNoDelay(true);
+		this.in = socket.getInputStream();
+		this.out = socket.getOutputStream();
+	}
+
+	@Override // Connection
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Wait for the next complete line, and return its fields. The fields point
+	 * into our read buffer, so they are only valid until the next call. Returns
+	 * null if the client has closed the connection.
+	 */
+	public Tokenizer readLine() throws IOException {
+		if (readStart == readEnd) { // Nothing left over from the last read
+			readStart = 0;
+			readEnd = 0;
+			if (readBuffer.length > BUFFER_SIZE) readBuffer = new byte[BUFFER_SIZE];
+		}
+		int scanned = readStart;
+		while (true) {
+			for (int i = scanned; i < readEnd; i++) {
+				if (readBuffer[i] == '\n') {
+					int length = i - readStart;
+					if (length > 0 && readBuffer[i - 1] == '\r') length--;
+					tokens.reset(readBuffer, readStart, length);
+					readStart = i + 1;
+					return tokens;
+				}
+			}
+			scanned = readEnd;
+
+			// No complete line yet: make room, and read some more
+			if (readStart > 0) {
+				System.arraycopy(readBuffer, readStart, readBuffer, 0, readEnd - readStart);
+				scanned -= readStart;
+				readEnd -= readStart;
+				readStart = 0;
+			}
+			if (readEnd == readBuffer.length) {
+				if (readBuffer.length >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+				byte[] larger = new byte[readBuffer.length * 2];
+				System.arraycopy(readBuffer, 0, larger, 0, readEnd);
+				readBuffer = larger;
+			}
+			int numBytes = in.read(readBuffer, readEnd, readBuffer.length - readEnd);
+			if (numBytes < 0) return null;
+			readEnd += numBytes;
+		}
+	}
+
+	/**
+	 * Start a writer, unless one is already running
+	 */
+	@Override // Connection
+	public void drain() {
+		if (writing.compareAndSet(false, true)) ClientThreads.startWriter(this::writeQueued);
+	}
+
+	/**
+	 * Write all waiting messages, flushing once per batch. A message may be queued
+	 * just after we found the queue empty, but before we stopped writing; so we
+	 * look once more after we stop.
+	 */
+	private void writeQueued() {
+		OutboundQueue outbound = client.getOutbound();
+		try {
+			do {
+				Message msg;
+				while ((msg = outbound.poll()) != null) {
+					msg.send(this);
+					if (writeLength >= BUFFER_SIZE) flush();
+				}
+				flush();
+				writing.set(false);
+			} while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+		} catch (IOException e) {
+			outbound.clear();
+			client.unreachable();
+			close(); // Also stops the reader
+			writing.set(false);
+		}
+	}
+
+	/**
+	 * Add one line, made up of the given fields separated by vertical bars. The
+	 * text is encoded as UTF-8 straight into the write buffer.
+	 */
+	public void writeLine(String[] fields) {
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) writeByte('|');
+			writeUtf8(fields[i]);
+		}
+		writeByte('\n');
+	}
+
+	/**
+	 * Add the bytes of a message that has already been encoded
+	 */
+	public void writeBytes(ByteBuffer bytes) {
+		int length = bytes.remaining();
+		if (writeLength + length > writeBuffer.length) {
+			byte[] larger = new byte[Math.max(writeBuffer.length * 2, writeLength + length)];
+			System.arraycopy(writeBuffer, 0, larger, 0, writeLength);
+			writeBuffer = larger;
+		}
+		bytes.get(writeBuffer, writeLength, length);
+		writeLength += length;
+	}
+
+	/**
+	 * Write out whatever is in the write buffer
+	 */
+	private void flush() throws IOException {
+		if (writeLength > 0) {
+			out.write(writeBuffer, 0, writeLength);
+			out.flush();
+			writeLength = 0;
+		}
+
+		// Don't keep a huge buffer, just because one message was very long
+		if (writeBuffer.length > MAX_LINE_LENGTH) writeBuffer = new byte[BUFFER_SIZE];
+	}
+
+	private void writeUtf8(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				writeByte(c);
+			} else if (c < 0x800) {
+				writeByte(0xC0 | (c >> 6));
+				writeByte(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				writeByte(0xF0 | (codePoint >> 18));
+				writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+				writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+				writeByte(0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				writeByte('?'); // Broken surrogate pair, same as String.getBytes
+			} else {
+				writeByte(0xE0 | (c >> 12));
+				writeByte(0x80 | ((c >> 6) & 0x3F));
+				writeByte(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void writeByte(int b) {
+		if (writeLength == writeBuffer.length) {
+			byte[] larger = new byte[writeBuffer.length * 2];
+			System.arraycopy(writeBuffer, 0, larger, 0, writeLength);
+			writeBuffer = larger;
+		}
+		writeBuffer[writeLength++] = (byte) b;
+	}
+
+	@Override // Connection
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// We don't care about any errors
+		}
+	}
+}
@@ -1,27 +1,43 @@
 package chatroom.server.message;
 
+import java.util.concurrent.CompletableFuture;
+
 import chatroom.server.Account;
 import chatroom.server.Client;
+import chatroom.server.PasswordHasher;
+import chatroom.server.Session;
 
 public class ChangePassword extends Message {
 	private String token;
 	private String password;
 
-	public ChangePassword(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.password = data[2];
+	public ChangePassword(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.password = tokens.get(2);
 	}
 
+	/**
+	 * Hashing the new password runs on the PasswordHasher; we reply when it is done
+	 */
 	@Override
 	public void process(Client client) {
-		boolean result = false;
-		if (client.getToken().equals(token)) {
-			Account account = client.getAccount();
-			account.changePassword(password);
-			result = true;
+		Account account = client.getAccount();
+		CompletableFuture<Boolean> changed = null;
+		if (Session.authenticate(client, token) && account != null) {
+			changed = PasswordHasher.submit(() -> {
+				account.changePassword(password);
+				return true;
+			});
+		}
+		if (changed == null) { // Not logged in, or too many requests at once
+			client.send(new Result(this.getClass(), false));
+			return;
 		}
-		client.send(new Result(this.getClass(), result));
-	}
 
+		client.suspendUntil(changed.handle((success, e) -> {
+			client.send(new Result(this.getClass(), e == null));
+			return null;
+		}));
+	}
 }
@@ -1,19 +1,19 @@
 package chatroom.server.message;
 
-import chatroom.server.Account;
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class CreateChatroom extends Message {
 	private String token;
 	private String name;
 	private boolean isPublic;
 
-	public CreateChatroom(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.name = data[2];
-		this.isPublic = data[3].equalsIgnoreCase("true");
+	public CreateChatroom(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.name = tokens.get(2);
+		this.isPublic = tokens.equalsIgnoreCase(3, "true");
 	}
 
 	/**
@@ -24,11 +24,9 @@ public CreateChatroom(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken().equals(token)) {
-			if (name.length() >= 3 && Account.exists(name) == null && Chatroom.exists(name) == null) {
-				Chatroom chatroom = new Chatroom(name, isPublic, client.getName());
-				Chatroom.add(chatroom);
-				result = true;
+		if (Session.authenticate(client, token)) {
+			if (name.length() >= 3) {
+				result = Chatroom.add(new Chatroom(name, isPublic, client.getName())); // Fails if the name is taken
 			}
 		}
 		client.send(new Result(this.getClass(), result));
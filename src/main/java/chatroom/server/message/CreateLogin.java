@@ -1,8 +1,11 @@
 package chatroom.server.message;
 
+import java.util.concurrent.CompletableFuture;
+
 import chatroom.server.Account;
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.PasswordHasher;
 
 /**
  * Create a completely new login. After creating an account, the user must still
@@ -12,29 +15,38 @@ public class CreateLogin extends Message {
 	private String username;
 	private String password;
 
-	public CreateLogin(String[] data) {
-		super(data);
-		this.username = data[1];
-		this.password = data[2];
+	public CreateLogin(Tokenizer tokens) {
+		super();
+		this.username = tokens.get(1);
+		this.password = tokens.get(2);
 	}
 
 	/**
 	 * We can only create a new account if the name is at least 3 characters, and is not
-	 * in use either as a user or as a chatroom
+	 * in use either as a user or as a chatroom. Hashing the password takes a while,
+	 * so we first check whether the name is free, hash the password on the
+	 * PasswordHasher, and then add the account only if nobody took the name
+	 * meanwhile.
 	 */
 	@Override
 	public void process(Client client) {
-		boolean result = false;
+		CompletableFuture<Account> created = null;
 		if (username != null && username.length() >= 3) {
 			if (password != null && password.length() >= 3) { // lax password requirements
 				if (Account.exists(username) == null && Chatroom.exists(username) == null) {
-					Account newAccount = new Account(username, password);
-					Account.add(newAccount);
-					result = true;
+					created = PasswordHasher.submit(() -> new Account(username, password));
 				}
 			}
 		}
-		client.send(new Result(this.getClass(), result));
+		if (created == null) { // Invalid or taken, or too many requests at once
+			client.send(new Result(this.getClass(), false));
+			return;
+		}
+
+		client.suspendUntil(created.handle((account, e) -> {
+			client.send(new Result(this.getClass(), e == null && Account.add(account)));
+			return null;
+		}));
 	}
 
 }
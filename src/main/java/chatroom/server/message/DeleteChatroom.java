@@ -2,15 +2,16 @@
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class DeleteChatroom extends Message {
 	private String token;
 	private String name;
 
-	public DeleteChatroom(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.name = data[2];
+	public DeleteChatroom(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.name = tokens.get(2);
 	}
 
 	/**
@@ -19,7 +20,7 @@ public DeleteChatroom(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken().equals(token)) {
+		if (Session.authenticate(client, token)) {
 			Chatroom chatroom = Chatroom.exists(name);
 			if (chatroom != null && chatroom.getOwner().equals(client.getName())) {
 				Chatroom.remove(chatroom);
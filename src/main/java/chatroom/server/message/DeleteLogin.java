@@ -2,21 +2,22 @@
 
 import chatroom.server.Account;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class DeleteLogin extends Message {
 	private String token;
 
-	public DeleteLogin(String[] data) {
-		super(data);
-		this.token = data[1];
+	public DeleteLogin(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
 	}
 
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken().equals(token)) {
+		if (Session.authenticate(client, token)) {
 			Account.remove(client.getAccount());
-			client.setToken(null);
+			Session.invalidate(token);
 			client.setAccount(null);
 			result = true;
 		}
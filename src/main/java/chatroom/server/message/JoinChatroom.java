@@ -2,6 +2,7 @@
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 /**
  * Add a user as a member of a chatroom.
@@ -11,11 +12,11 @@ public class JoinChatroom extends Message {
 	private String name;
 	private String username;
 
-	public JoinChatroom(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.name = data[2];
-		this.username = data[3];
+	public JoinChatroom(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.name = tokens.get(2);
+		this.username = tokens.get(3);
 	}
 
 	/**
@@ -25,10 +26,10 @@ public JoinChatroom(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken().equals(token)) {
+		if (Session.authenticate(client, token)) {
 			Chatroom chatroom = Chatroom.exists(name);
-			if (chatroom.getOwner().equals(client.getName())
-					|| client.getName().equals(username) && chatroom.isPublic()) {
+			if (chatroom != null && (chatroom.getOwner().equals(client.getName())
+					|| client.getName().equals(username) && chatroom.isPublic())) {
 				chatroom.addUser(username);
 				result = true;
 			}
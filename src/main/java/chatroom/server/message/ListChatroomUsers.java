@@ -1,18 +1,19 @@
 package chatroom.server.message;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class ListChatroomUsers extends Message {
 	private String token;
 	private String name;
 
-	public ListChatroomUsers(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.name = data[2];
+	public ListChatroomUsers(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.name = tokens.get(2);
 	}
 
 	/**
@@ -22,14 +23,12 @@ public ListChatroomUsers(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		ArrayList<String> names = null;
-		if (client.getToken().equals(token)) {
+		List<String> names = null;
+		if (Session.authenticate(client, token)) {
 			Chatroom chatroom = Chatroom.exists(name);
-			if (chatroom != null) {
+			if (chatroom != null && (chatroom.isPublic() || chatroom.isMember(client.getName()))) {
 				names = chatroom.getUsers();
-				if (chatroom.isPublic() || names.contains(client.getName())) {
-					result = true;
-				}
+				result = true;
 			}
 		}
 
@@ -1,22 +1,25 @@
 package chatroom.server.message;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class ListChatrooms extends Message {
 	private String token;
+	private String prefix; // Optional: only list chatrooms whose names start with this
 
-	public ListChatrooms(String[] data) {
-		super(data);
-		this.token = data[1];
+	public ListChatrooms(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		if (tokens.size() > 2) this.prefix = tokens.get(2);
 	}
 
 	@Override
 	public void process(Client client) {
-		if (client.getToken().equals(token)) {
-			ArrayList<String> names = Chatroom.listPublicNames();
+		if (Session.authenticate(client, token)) {
+			List<String> names = (prefix == null) ? Chatroom.listPublicNames() : Chatroom.listPublicNames(prefix);
 			client.send(new Result(this.getClass(), true, names));
 		} else {
 			client.send(new Result(this.getClass(), false));
@@ -1,35 +1,49 @@
 package chatroom.server.message;
 
+import java.util.concurrent.CompletableFuture;
+
 import chatroom.server.Account;
 import chatroom.server.Client;
+import chatroom.server.PasswordHasher;
+import chatroom.server.Session;
 
 /**
  * Login to an existing account. If successful, return an authentication token
- * to the client.
+ * to the client. Checking the password runs on the PasswordHasher; we reply when
+ * it is done.
  */
 public class Login extends Message {
 	private String username;
 	private String password;
 
-	public Login(String[] data) {
-		super(data);
-		this.username = data[1];
-		this.password = data[2];
+	public Login(Tokenizer tokens) {
+		super();
+		this.username = tokens.get(1);
+		this.password = tokens.get(2);
 	}
 
 	@Override
 	public void process(Client client) {
-		Message reply;
 		// Find existing login matching the username
 		Account account = Account.exists(username);
-		if (account != null && account.checkPassword(password)) {
-			client.setAccount(account);
-			String token = Account.getToken();
-			client.setToken(token);
-			reply = new Result(this.getClass(), true, token);
-		} else {
-			reply = new Result(this.getClass(), false);
+		CompletableFuture<Boolean> checked = null;
+		if (account != null) checked = PasswordHasher.submit(() -> account.checkPassword(password));
+		if (checked == null) { // No such account, or too many logins at once
+			client.send(new Result(this.getClass(), false));
+			return;
 		}
-		client.send(reply);
+
+		client.suspendUntil(checked.handle((success, e) -> {
+			Message reply;
+			if (e == null && success) {
+				client.setAccount(account);
+				String token = Session.create(client);
+				reply = new Result(this.getClass(), true, token);
+			} else {
+				reply = new Result(this.getClass(), false);
+			}
+			client.send(reply);
+			return null;
+		}));
 	}
 }
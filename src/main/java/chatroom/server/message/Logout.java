@@ -1,16 +1,17 @@
 package chatroom.server.message;
 
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class Logout extends Message {
 
-	public Logout(String[] data) {
-		super(data);
+	public Logout(Tokenizer tokens) {
+		super();
 	}
 
 	@Override
 	public void process(Client client) {
-		client.setToken(null); // Destroy authentication token
+		Session.invalidate(client.getToken()); // Destroy authentication token
 		client.setAccount(null); // Destroy account information
 		client.send(new Result(this.getClass(), true));
 	}
@@ -1,27 +1,103 @@
 package chatroom.server.message;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.lang.reflect.Constructor;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import chatroom.server.Client;
+import chatroom.server.SocketConnection;
 
 public abstract class Message {
 	private static Logger logger = Logger.getLogger("");
 
+	// Logging the content of every message is expensive, and fills the log with
+	// private conversations, so it must be switched on. Passwords are never logged.
+	// We name the source ourselves, since finding the caller is slower than all
+	// the rest of the logging.
+	private static boolean logPayloads = false;
+	private static final String SOURCE = Message.class.getName();
+	private static final String MASK = "*****";
+
+	// The messages that a client may send, by name. This table is built once, so
+	// that we do not need reflection to create each incoming message, and so that
+	// clients cannot make us load arbitrary classes. It is a small hash table of
+	// our own, so that we can look up the name without making a String of it.
+	private static final MessageType[] messageTypes = new MessageType[32]; // Must be a power of 2
+	static {
+		register("ChangePassword", ChangePassword::new, 2);
+		register("CreateChatroom", CreateChatroom::new);
+		register("CreateLogin", CreateLogin::new, 2);
+		register("DeleteChatroom", DeleteChatroom::new);
+		register("DeleteLogin", DeleteLogin::new);
+		register("JoinChatroom", JoinChatroom::new);
+		register("LeaveChatroom", LeaveChatroom::new);
+		register("ListChatroomUsers", ListChatroomUsers::new);
+		register("ListChatrooms", ListChatrooms::new);
+		register("Login", Login::new, 2);
+		register("Logout", Logout::new);
+		register("Ping", Ping::new);
+		register("SendMessage", SendMessage::new);
+		register("UserOnline", UserOnline::new);
+	}
+
+	private static class MessageType {
+		private final String name;
+		private final Function<Tokenizer, Message> factory;
+		private final int passwordField; // -1 if none
+
+		private MessageType(String name, Function<Tokenizer, Message> factory, int passwordField) {
+			this.name = name;
+			this.factory = factory;
+			this.passwordField = passwordField;
+		}
+	}
+
+	private static void register(String name, Function<Tokenizer, Message> factory) {
+		register(name, factory, -1);
+	}
+
+	private static void register(String name, Function<Tokenizer, Message> factory, int passwordField) {
+		int i = name.hashCode() & (messageTypes.length - 1);
+		while (messageTypes[i] != null) i = (i + 1) & (messageTypes.length - 1);
+		messageTypes[i] = new MessageType(name, factory, passwordField);
+	}
+
+	/**
+	 * Log the content of every message sent and received (at level FINE) -- set
+	 * at startup
+	 */
+	public static void setLogPayloads(boolean newLogPayloads) {
+		logPayloads = newLogPayloads;
+	}
+
+	private static MessageType findType(Tokenizer tokens) {
+		int i = tokens.hashCode(0) & (messageTypes.length - 1);
+		while (messageTypes[i] != null) {
+			if (tokens.equals(0, messageTypes[i].name)) return messageTypes[i];
+			i = (i + 1) & (messageTypes.length - 1);
+		}
+		return null;
+	}
+
 	private String[] data;
+	private volatile ByteBuffer encoded = null; // The bytes on the wire, once encoded
 
 	public Message(String[] data) {
 		this.data = data;
 	}
 
+	// Constructor for incoming messages. These are never sent on, so we don't keep
+	// their data
+	protected Message() {
+		this.data = null;
+	}
+
 	// Special constructor for variable-length messages
-	public Message(String[] data, ArrayList<String> elements) {
+	public Message(String[] data, List<String> elements) {
 		this.data = new String[data.length + elements.size()];
 		for (int i = 0; i < data.length; i++)
 			this.data[i] = data[i];
@@ -34,57 +110,94 @@ public Message(String[] data, ArrayList<String> elements) {
 	 */
 	public abstract void process(Client client);
 
-	public void send(Socket socket) throws IOException {
-		OutputStreamWriter out;
-		out = new OutputStreamWriter(socket.getOutputStream());
-		logger.info("Sending message: " + this.toString());
-		out.write(this.toString() + "\n");
-		out.flush();
+	/**
+	 * Add this message to the connection's write buffer. The connection decides
+	 * when to write the buffer out. If the message has already been encoded, we
+	 * copy those bytes rather than encoding it again.
+	 */
+	public void send(SocketConnection connection) {
+		if (encoded != null) {
+			connection.writeBytes(toBuffer());
+		} else {
+			if (logPayloads) logger.logp(Level.FINE, SOURCE, "send", "Sending message: {0}", this);
+			connection.writeLine(data);
+		}
+	}
+
+	/**
+	 * The bytes that go over the wire for this message, including the line end.
+	 * The message is encoded (and logged) only the first time; every caller gets
+	 * its own read-only view of the same bytes. A message sent to a chatroom is
+	 * encoded once, however many clients receive it.
+	 */
+	public ByteBuffer toBuffer() {
+		ByteBuffer buffer = encoded;
+		if (buffer == null) {
+			if (logPayloads) logger.logp(Level.FINE, SOURCE, "toBuffer", "Sending message: {0}", this);
+			buffer = ByteBuffer.wrap((this.toString() + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+			encoded = buffer;
+		}
+		return buffer.duplicate();
 	}
 
-	public static Message receive(Socket socket) {
-		BufferedReader in;
+	public static Message receive(SocketConnection connection) {
 		Message msg = null;
 		try {
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			String msgText = in.readLine(); // Will wait here for complete line
-			logger.info("Receiving message: " + msgText);
-
-			// Break message into individual parts, and remove extra spaces
-			String[] parts = msgText.split("\\|");
-			for (int i = 0; i < parts.length; i++) {
-				parts[i] = parts[i].trim();
-			}
+			Tokenizer tokens = connection.readLine(); // Will wait here for complete line
+			msg = parse(tokens);
+		} catch (IOException e) {
+			logger.warning(e.toString());
+		}
+		return msg;
+	}
 
-			// Create a message object of the correct class, using reflection
-			//
-			// This would be more understandable - but a *lot* longer - if we used
-			// a series of "if" statements:
-			//
-			// if (parts[0].equals("Login") msg = new Login(parts);
-			// else if (parts[0].equals("Logout") msg = new Logout(parts);
-			// else if ...
-			// else ...
-			String messageClassName = Message.class.getPackage().getName() + "." + parts[0];
+	/**
+	 * Turn one complete line into a message object. Returns null if the line does
+	 * not contain a valid message.
+	 */
+	public static Message parse(Tokenizer tokens) {
+		Message msg = null;
+
+		// Create a message object of the correct class. An unknown message type is
+		// simply not found in the table
+		MessageType messageType = (tokens.size() > 0) ? findType(tokens) : null;
+		if (logPayloads && logger.isLoggable(Level.FINE)) { // The tokens are reused, so format them now
+			logger.logp(Level.FINE, SOURCE, "parse", "Receiving message: " + masked(tokens, messageType));
+		}
+		if (messageType != null) {
 			try {
-				Class<?> messageClass = Class.forName(messageClassName);
-				Constructor<?> constructor = messageClass.getConstructor(String[].class);
-				msg = (Message) constructor.newInstance(new Object[] { parts });
-				logger.info("Received message of type " + parts[0]);
-			} catch (Exception e) {
-				logger.warning("Received invalid message of type " + parts[0]);
+				msg = messageType.factory.apply(tokens);
+				logger.log(Level.FINER, "Received message of type {0}", messageType.name);
+			} catch (Exception e) { // Missing fields
+				logger.log(Level.WARNING, "Received invalid message of type {0}", messageType.name);
 			}
-		} catch (IOException e) {
-			logger.warning(e.toString());
+		} else {
+			logger.log(Level.WARNING, "Received invalid message with {0} fields", tokens.size());
 		}
 		return msg;
 	}
 
+	/**
+	 * The message as received, but without the password. If we do not know the
+	 * message type, we cannot know where the password is, so we only show the
+	 * first field.
+	 */
+	private static String masked(Tokenizer tokens, MessageType messageType) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < tokens.size(); i++) {
+			if (i > 0) text.append('|');
+			boolean hidden = (messageType == null) ? i > 0 : i == messageType.passwordField;
+			text.append(hidden ? MASK : tokens.get(i));
+		}
+		return text.toString();
+	}
+
 	/**
 	 * A message is really just a bunch of strings separated by vertical bars
 	 */
 	@Override
 	public String toString() {
+		if (data == null) return this.getClass().getSimpleName();
 		return String.join("|", data);
 	}
 }
@@ -1,6 +1,7 @@
 package chatroom.server.message;
 
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class Ping extends Message {
 	private String token;
@@ -8,10 +9,10 @@ public class Ping extends Message {
 	/**
 	 * The data may optionally contain a token
 	 */
-	public Ping(String[] data) {
-		super(data);
+	public Ping(Tokenizer tokens) {
+		super();
 		token = null;
-		if (data.length > 1) token = data[1];
+		if (tokens.size() > 1) token = tokens.get(1);
 	}
 
 	/**
@@ -20,7 +21,7 @@ public Ping(String[] data) {
 	 */
 	@Override
 	public void process(Client client) {
-		boolean result = (token == null || token.equals(client.getToken()));
+		boolean result = (token == null || Session.authenticate(client, token));
 		client.send(new Result(this.getClass(), result));
 	}
 
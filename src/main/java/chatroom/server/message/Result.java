@@ -1,6 +1,6 @@
 package chatroom.server.message;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import chatroom.server.Client;
 
@@ -23,7 +23,7 @@ public Result(Class<?> msgClass, boolean result, String token) {
 	/**
 	 * When a list is requested, the result includes all list values
 	 */
-	public Result(Class<?> msgClass, boolean result, ArrayList<String> list) {
+	public Result(Class<?> msgClass, boolean result, List<String> list) {
 		super(new String[] {"Result", msgClass.getSimpleName(), Boolean.toString(result)}, list);
 	}
 
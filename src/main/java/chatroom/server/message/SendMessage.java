@@ -2,6 +2,7 @@
 
 import chatroom.server.Chatroom;
 import chatroom.server.Client;
+import chatroom.server.Session;
 import chatroom.server.Sendable;
 
 public class SendMessage extends Message {
@@ -9,11 +10,11 @@ public class SendMessage extends Message {
 	private String destination;
 	private String message;
 
-	public SendMessage(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.destination = data[2];
-		this.message = data[3];
+	public SendMessage(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.destination = tokens.get(2);
+		this.message = tokens.get(3);
 	}
 
 	/**
@@ -23,7 +24,7 @@ public SendMessage(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken().equals(token) && message.length() >= 1 && message.length() <= 1024) {
+		if (Session.authenticate(client, token) && message.length() >= 1 && message.length() <= 1024) {
 			Sendable target = null;
 			// First check for an individual user
 			Client user = Client.exists(destination);
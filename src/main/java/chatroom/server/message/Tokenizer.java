@@ -0,0 +1,142 @@
+package chatroom.server.message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cuts one line of UTF-8 bytes into the fields separated by vertical bars,
+ * without copying anything: we only record where each field starts and ends.
+ * A message then turns just the fields it needs into Strings.
+ *
+ * The result is the same as line.split("\\|") followed by trim() on every
+ * field. In particular, empty fields at the end of the line are dropped, just
+ * like String.split does.
+ *
+ * Each connection owns one tokenizer, and reuses it for every line. The fields
+ * are only valid until the connection reads the next line.
+ */
+public class Tokenizer {
+	private byte[] bytes;
+	private int offset;
+	private int length;
+
+	private int numFields = 0;
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+
+	/**
+	 * Tokenize the given line, which does not include the line end
+	 */
+	public void reset(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+
+		numFields = 0;
+		int end = offset + length;
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (bytes[i] == '|') {
+				addField(start, i);
+				start = i + 1;
+			}
+		}
+		addField(start, end);
+
+		// Like String.split, drop empty fields at the end - unless there is no
+		// separator at all
+		if (numFields > 1) {
+			while (numFields > 0 && starts[numFields - 1] == ends[numFields - 1]) numFields--;
+		}
+
+		// Like String.trim, remove spaces and control characters. UTF-8 encodes
+		// all other characters as bytes >= 0x80, so we cannot cut one in half
+		for (int i = 0; i < numFields; i++) {
+			while (starts[i] < ends[i] && (bytes[starts[i]] & 0xFF) <= ' ') starts[i]++;
+			while (ends[i] > starts[i] && (bytes[ends[i] - 1] & 0xFF) <= ' ') ends[i]--;
+		}
+	}
+
+	private void addField(int start, int end) {
+		if (numFields == starts.length) {
+			int[] largerStarts = new int[starts.length * 2];
+			int[] largerEnds = new int[ends.length * 2];
+			System.arraycopy(starts, 0, largerStarts, 0, numFields);
+			System.arraycopy(ends, 0, largerEnds, 0, numFields);
+			starts = largerStarts;
+			ends = largerEnds;
+		}
+		starts[numFields] = start;
+		ends[numFields] = end;
+		numFields++;
+	}
+
+	public int size() {
+		return numFields;
+	}
+
+	/**
+	 * Returns the given field as a String. The field must exist; otherwise we
+	 * throw an ArrayIndexOutOfBoundsException, just like an array would.
+	 */
+	public String get(int field) {
+		checkField(field);
+		return new String(bytes, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+	}
+
+	public int length(int field) {
+		checkField(field);
+		return ends[field] - starts[field];
+	}
+
+	/**
+	 * Compare a field to a String containing only ASCII characters
+	 */
+	public boolean equals(int field, String ascii) {
+		checkField(field);
+		int fieldLength = ends[field] - starts[field];
+		if (fieldLength != ascii.length()) return false;
+		for (int i = 0; i < fieldLength; i++) {
+			if (bytes[starts[field] + i] != ascii.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare a field to a String containing only ASCII characters, ignoring case
+	 */
+	public boolean equalsIgnoreCase(int field, String ascii) {
+		checkField(field);
+		int fieldLength = ends[field] - starts[field];
+		if (fieldLength != ascii.length()) return false;
+		for (int i = 0; i < fieldLength; i++) {
+			if (Character.toLowerCase((char) bytes[starts[field] + i]) != Character.toLowerCase(ascii.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The same value as get(field).hashCode(), as long as the field only contains
+	 * ASCII characters
+	 */
+	public int hashCode(int field) {
+		checkField(field);
+		int hash = 0;
+		for (int i = starts[field]; i < ends[field]; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+		return hash;
+	}
+
+	private void checkField(int field) {
+		if (field < 0 || field >= numFields) throw new ArrayIndexOutOfBoundsException(field);
+	}
+
+	/**
+	 * The whole line, as it was received
+	 */
+	@Override
+	public String toString() {
+		return new String(bytes, offset, length, StandardCharsets.UTF_8);
+	}
+}
@@ -1,15 +1,16 @@
 package chatroom.server.message;
 
 import chatroom.server.Client;
+import chatroom.server.Session;
 
 public class UserOnline extends Message {
 	private String token;
 	private String username;
 
-	public UserOnline(String[] data) {
-		super(data);
-		this.token = data[1];
-		this.username = data[2];
+	public UserOnline(Tokenizer tokens) {
+		super();
+		this.token = tokens.get(1);
+		this.username = tokens.get(2);
 	}
 
 	/**
@@ -21,7 +22,7 @@ public UserOnline(String[] data) {
 	@Override
 	public void process(Client client) {
 		boolean result = false;
-		if (client.getToken() != null && client.getToken().equals(token)) {
+		if (Session.authenticate(client, token)) {
 			Client c = Client.exists(username);
 			result = c != null && c.getToken() != null;
 		}
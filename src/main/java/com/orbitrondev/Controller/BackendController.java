@@ -17,12 +17,24 @@
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.security.Security;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Backend utility class. Acts as an interface between the program and the server.
@@ -40,13 +52,135 @@ public class BackendController implements Closeable {
     private BufferedReader socketIn;
     private OutputStreamWriter socketOut;
 
-    private volatile ArrayList<String> lastMessage = new ArrayList<>();
+    /**
+     * The commands sent to the server, which are still waiting for their "Result". The server answers the commands of
+     * one connection in the order they were sent, so the next "Result" always belongs to the oldest of them.
+     */
+    private final ConcurrentLinkedQueue<PendingCommand> pendingCommands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Held while writing a command. The commands of a batch are written while it is held, and only flushed at the end.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
 
-    private ArrayList<MessageTextEventListener> textListener = new ArrayList<>();
-    private ArrayList<MessageErrorEventListener> errorListener = new ArrayList<>();
+    private static final long RESPONSE_TIMEOUT_SECONDS = 10;
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "BackendTimeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Incoming chat messages are saved and passed to the listeners by these threads, so that the response thread only
+     * has to read. The messages of a chat are always handled by the same thread, and so in the order they arrived,
+     * while different chats don't have to wait for each other.
+     */
+    private static final int MESSAGE_HANDLER_THREADS = 2;
+    private final ExecutorService[] messageHandlers = new ExecutorService[MESSAGE_HANDLER_THREADS];
+
+    /**
+     * Completes the results (in the order they arrived), so that whatever runs when a command is complete, like saving
+     * the result to the DB, doesn't keep the response thread from reading either.
+     */
+    private final ExecutorService resultHandler = createHandler("BackendResultHandler");
+
+    {
+        for (int i = 0; i < messageHandlers.length; i++) {
+            messageHandlers[i] = createHandler("BackendMessageHandler-" + i);
+        }
+    }
+
+    // The handler threads call the listeners, while others may add new ones
+    private List<MessageTextEventListener> textListener = new CopyOnWriteArrayList<>();
+    private List<MessageErrorEventListener> errorListener = new CopyOnWriteArrayList<>();
 
     private volatile boolean stopResponseThread = false;
 
+    /**
+     * The "Result" the server sent in response to a command.
+     *
+     * @since 0.0.3
+     */
+    public static class Response {
+        private final String command;
+        private final boolean success;
+        private final List<String> values;
+
+        /**
+         * @param command A string containing the name of the command, or "null" if the server did not send it.
+         * @param success A boolean, whether the command succeeded.
+         * @param values  A list of strings containing everything after the boolean (a token, or the list requested).
+         *
+         * @since 0.0.3
+         */
+        public Response(String command, boolean success, List<String> values) {
+            this.command = command;
+            this.success = success;
+            this.values = values;
+        }
+
+        /**
+         * Reads the parts of a "Result" response. Servers send either "Result|Command|Boolean|..." or
+         * "Result|Boolean|...", so we accept both.
+         *
+         * @param parts A list of strings containing the parts of the response, starting with "Result".
+         *
+         * @return An object containing the result.
+         *
+         * @since 0.0.3
+         */
+        public static Response parse(List<String> parts) {
+            int first = 1;
+            String command = null;
+            if (parts.size() > 1 && !parts.get(1).equals("true") && !parts.get(1).equals("false")) {
+                command = parts.get(1);
+                first = 2;
+            }
+            boolean success = parts.size() > first && Boolean.parseBoolean(parts.get(first));
+            List<String> values = parts.size() > first + 1 ? new ArrayList<>(parts.subList(first + 1, parts.size())) : new ArrayList<>();
+            return new Response(command, success, values);
+        }
+
+        /**
+         * A failed result, for when the server answered with a "MessageError" instead.
+         *
+         * @since 0.0.3
+         */
+        static Response failed(String command) {
+            return new Response(command, false, new ArrayList<>());
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public List<String> getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * A command waiting for its "Result".
+     *
+     * @since 0.0.3
+     */
+    private static class PendingCommand {
+        private final String command;
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        private PendingCommand(String command) {
+            this.command = command;
+        }
+    }
+
     /**
      * Creates a Socket (insecure) to the backend.
      *
@@ -68,8 +202,8 @@ public BackendController(String ipAddress, int port) throws InvalidIpException,
 
         createStandardSocket(ipAddress, port);
 
-        socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        socketOut = new OutputStreamWriter(socket.getOutputStream());
+        socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        socketOut = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
 
         createResponseThread();
     }
@@ -101,8 +235,8 @@ public BackendController(String ipAddress, int port, boolean secure) throws Inva
                 createStandardSocket(ipAddress, port);
             }
 
-            socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            socketOut = new OutputStreamWriter(socket.getOutputStream());
+            socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            socketOut = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
 
             createResponseThread();
         } catch (IOException e) {
@@ -130,33 +264,47 @@ public void addMessageErrorListener(MessageErrorEventListener listener) {
     }
 
     /**
-     * Creates a thread in the background, which waits for a response from the server.
+     * Creates a thread in the background, which waits for a response from the server. Each "Result" completes the
+     * oldest command still waiting, see {@link #request(String...)}.
      *
      * @since 0.0.1
      */
     private void createResponseThread() {
         // Create thread to read incoming messages
         Runnable r = () -> {
+            ArrayList<String> parts = new ArrayList<>();
             while (true) {
                 String msg;
-                String[] msgSplit;
 
                 try {
                     msg = socketIn.readLine();
                     logger.info("Response received: " + msg);
 
                     if (msg != null && msg.length() > 0) {
-                        msgSplit = msg.split("\\|");
-                        lastMessage.addAll(Arrays.asList(msgSplit));
+                        parts.clear();
+                        splitResponse(msg, parts);
 
-                        switch (lastMessage.get(0)) {
+                        // Only take the response apart here, everything else is done by the handler threads
+                        switch (parts.get(0)) {
+                            case "Result":
+                                receivedResult(Response.parse(parts));
+                                break;
                             case "MessageText":
-                                receivedMessageText(lastMessage.get(1), lastMessage.get(2), lastMessage.get(3));
-                                lastMessage.clear();
+                                String username = parts.get(1);
+                                String targetChat = parts.get(2);
+                                String text = parts.get(3);
+                                dispatch(messageHandlerFor(username, targetChat), () -> receivedMessageText(username, targetChat, text));
                                 break;
                             case "MessageError":
-                                receivedMessageError(lastMessage.get(1));
-                                lastMessage.clear();
+                                // The server sends this instead of a "Result", if it did not understand the command
+                                PendingCommand pending = pendingCommands.poll();
+                                String errorMessage = parts.size() > 1 ? parts.get(1) : "";
+                                dispatch(resultHandler, () -> {
+                                    if (pending != null) {
+                                        pending.response.complete(Response.failed(pending.command));
+                                    }
+                                    receivedMessageError(errorMessage);
+                                });
                                 break;
                         }
                     }
@@ -167,8 +315,11 @@ private void createResponseThread() {
                 if (msg == null) break; // In case the server closes the socket
                 if (stopResponseThread) break;
             }
+            // Nobody will answer the commands still waiting
+            failPendingCommands(new EOFException("Connection to the server closed"));
         };
-        Thread t = new Thread(r);
+        Thread t = new Thread(r, "BackendResponseThread");
+        t.setDaemon(true);
         t.start();
     }
 
@@ -176,6 +327,87 @@ public void stopResponseThread() {
         stopResponseThread = true;
     }
 
+    /**
+     * Creates a thread, which runs the tasks given to it one after the other.
+     *
+     * @param name A string containing the name of the thread.
+     *
+     * @return An object to give tasks to the thread.
+     *
+     * @since 0.0.3
+     */
+    private static ExecutorService createHandler(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Finds the thread which handles the messages of a chat. A message to the logged in user belongs to the direct
+     * chat with the sender, any other message to the chatroom it was sent to.
+     *
+     * @param username   A string containing the name of the user who posted.
+     * @param targetChat A string containing the chat where the message was sent.
+     *
+     * @return An object to give tasks to the thread.
+     *
+     * @since 0.0.3
+     */
+    private ExecutorService messageHandlerFor(String username, String targetChat) {
+        LoginModel login = serviceLocator.getCurrentLogin();
+        String chat = (login != null && targetChat.equals(login.getUsername())) ? username : targetChat;
+        return messageHandlers[(chat.hashCode() & Integer.MAX_VALUE) % messageHandlers.length];
+    }
+
+    /**
+     * Gives a task to a handler thread. After the connection was closed, there are no more handler threads, and the
+     * task is dropped.
+     *
+     * @param handler The handler thread.
+     * @param task    The task to run.
+     *
+     * @since 0.0.3
+     */
+    private static void dispatch(ExecutorService handler, Runnable task) {
+        try {
+            handler.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Response dropped, the connection is closed");
+        }
+    }
+
+
+    /**
+     * Splits a response into its parts, which are separated by vertical bars. This gives the same result as
+     * msg.split("\\|"), including dropping empty parts at the end, but without compiling a regular expression or
+     * creating an intermediate array.
+     *
+     * @param msg   A string containing the whole response.
+     * @param parts The list to which the parts are added.
+     *
+     * @since 0.0.2
+     */
+    private static void splitResponse(String msg, List<String> parts) {
+        int firstPart = parts.size();
+        int start = 0;
+        int end;
+        while ((end = msg.indexOf('|', start)) >= 0) {
+            parts.add(msg.substring(start, end));
+            start = end + 1;
+        }
+        if (start == 0) {
+            // No separator at all: the whole response is the only part
+            parts.add(msg);
+            return;
+        }
+        parts.add(msg.substring(start));
+        while (parts.size() > firstPart && parts.get(parts.size() - 1).isEmpty()) {
+            parts.remove(parts.size() - 1);
+        }
+    }
+
     /**
      * Handle an incoming "MessageError" response.
      *
@@ -192,7 +424,8 @@ private void receivedMessageError(String errorMessage) {
     }
 
     /**
-     * Handle an incoming "MessageText" response, for when someone posts something.
+     * Handle an incoming "MessageText" response, for when someone posts something. Runs on the message handler thread
+     * of the chat.
      *
      * @param username   A string containing the name of the user who posted.
      * @param targetChat A string containing the chat where the message was sent.
@@ -247,14 +480,13 @@ private void receivedMessageText(String username, String targetChat, String text
             } else {
                 logger.debug("Incoming message is a group chat...");
                 // Check whether it is a known group chat (public or private)
-                ChatModel result = db.getChatDao().queryBuilder().where().eq("name", targetChat).queryForFirst();
+                ChatModel result = db.findChat(targetChat);
+                // Otherwise check whether it is a public group chat (by asking the server again). This runs on a
+                // handler thread, so we can wait for the answer.
+                ArrayList<String> groupChats = result == null ? sendListChatrooms(login.getToken()) : null;
                 if (result != null) {
                     toUserOrGroup = result;
-                } else {
-                    // TODO: We can't resend a command because we are already running on the listener's thread (Solution
-                    //  for now: Run ListChatrooms at the beginning of the program
-                    // Check whether it is a public group chat (by asking the server again)
-                    ArrayList<String> groupChats = sendListChatrooms(login.getToken());
+                } else if (groupChats != null) {
                     for (String groupChat : groupChats) {
                         System.out.println(groupChat + " == " + targetChat);
                         if (groupChat.equals(targetChat)) {
@@ -268,9 +500,9 @@ private void receivedMessageText(String username, String targetChat, String text
                 // TODO: Throw unknown target (Must be a private chat we don't know about yet)
             }
 
-            // Create the message inside the db
+            // Create the message inside the db (saved together with others, see DatabaseController.saveMessage)
             message = new MessageModel(text, toUserOrGroup, new Date(), fromUser);
-            db.getMessageDao().create(message);
+            db.saveMessage(message);
         } catch (SQLException | IOException e) {
             e.printStackTrace();
         }
@@ -283,24 +515,138 @@ private void receivedMessageText(String username, String targetChat, String text
         }
     }
 
+
     /**
-     * Wait until the a "Result" response arrives from the server.
+     * Handle an incoming "Result" response, by completing the command it belongs to.
      *
-     * @since 0.0.1
+     * @param response An object containing the result.
+     *
+     * @since 0.0.3
      */
-    private void waitForResultResponse() {
-        // TODO: This is somehow the reason the tests fail
-        while (lastMessage.size() == 0 || !lastMessage.get(0).equals("Result")) {
+    private void receivedResult(Response response) {
+        PendingCommand pending = pendingCommands.poll();
+        if (pending == null) {
+            logger.warn("Result received, but no command is waiting for it");
+            return;
+        }
+        if (response.getCommand() != null && !response.getCommand().equals(pending.command)) {
+            logger.warn("Result of " + response.getCommand() + " received, but " + pending.command + " was expected");
+        }
+        dispatch(resultHandler, () -> pending.response.complete(response));
+    }
+
+    /**
+     * Fails all commands still waiting for a result, e.g., because the connection was closed.
+     *
+     * @param cause The exception the commands fail with.
+     *
+     * @since 0.0.3
+     */
+    private void failPendingCommands(IOException cause) {
+        PendingCommand pending;
+        while ((pending = pendingCommands.poll()) != null) {
+            pending.response.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Sends a command to the server, without waiting for the result. The server answers the commands in the order
+     * they were sent, so the returned future is completed by the next "Result" after those of all earlier commands.
+     * If there is no result within {@value #RESPONSE_TIMEOUT_SECONDS} seconds, the future fails with a
+     * SocketTimeoutException. Inside {@link #sendBatch(Runnable)}, the command is only sent at the end of the batch.
+     *
+     * @param commandParts An array of strings containing all the command parts.
+     *
+     * @return A future, which is completed with the result of the command.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Response> request(String... commandParts) {
+        String command = String.join("|", commandParts);
+        int endOfName = command.indexOf('|');
+        PendingCommand pending = new PendingCommand(endOfName < 0 ? command : command.substring(0, endOfName));
+        try {
+            // Queue and send under the same lock, so that the queue has the same order as the commands sent
+            sendLock.lock();
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                // We don't care
+                pendingCommands.add(pending);
+                logger.info("Command sent: " + command);
+                socketOut.write(command + "\n");
+                if (sendLock.getHoldCount() == 1) {
+                    // Not inside a batch
+                    socketOut.flush();
+                }
+            } finally {
+                sendLock.unlock();
             }
+        } catch (IOException e) {
+            pendingCommands.remove(pending);
+            pending.response.completeExceptionally(e);
+            return pending.response;
         }
+
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> pending.response.completeExceptionally(
+                new SocketTimeoutException("No result for " + pending.command + " from the server")),
+                RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        pending.response.whenComplete((response, e) -> timeout.cancel(false));
+        return pending.response;
     }
 
     /**
-     * Sends a command to the server.
+     * Sends several commands at once. The commands requested by the task (using the asynchronous methods, like
+     * {@link #sendUserOnlineAsync(String, String)}) are written one after the other, and sent to the server together
+     * at the end, so that all of them together take a single round trip. Other threads cannot send commands meanwhile.
+     * <p>
+     * The task must not wait for any of the results, these only arrive after the batch was sent.
+     *
+     * @param commands A Runnable object, which requests the commands.
+     *
+     * @throws IOException If an I/O error occurs.
+     * @since 0.0.3
+     */
+    public void sendBatch(Runnable commands) throws IOException {
+        sendLock.lock();
+        try {
+            commands.run();
+            socketOut.flush();
+        } catch (IOException e) {
+            // Some of the commands might not have been sent, so none of them will get a result
+            failPendingCommands(e);
+            throw e;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a result, for the methods which block until the server has answered, and for the results of a batch.
+     *
+     * @param future The future returned by one of the asynchronous methods.
+     * @param <T>    The type of the result.
+     *
+     * @return The result of the command.
+     *
+     * @throws IOException If an I/O error occurs, or the server does not answer in time.
+     * @since 0.0.3
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Sends a command to the server. The result is not returned to the caller, but still expected, so that the
+     * results of later commands are not mixed up.
      *
      * @param command A string containing the whole string which is sent to the server.
      *
@@ -308,9 +654,10 @@ private void waitForResultResponse() {
      * @since 0.0.1
      */
     public void sendCommand(String command) throws IOException {
-        logger.info("Command sent: " + command);
-        socketOut.write(command + "\n");
-        socketOut.flush();
+        CompletableFuture<Response> response = request(command);
+        if (response.isCompletedExceptionally()) {
+            await(response);
+        }
     }
 
     /**
@@ -338,12 +685,21 @@ public void sendCommand(String[] commandParts) throws IOException {
      * @since 0.0.1
      */
     public boolean sendCreateLogin(String username, String password) throws IOException {
-        sendCommand(new String[]{"CreateLogin", username, password});
+        return await(sendCreateLoginAsync(username, password));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+    /**
+     * Register a user on the the server, without waiting for the result.
+     *
+     * @param username A string containing the name of the user.
+     * @param password A string containing the password of the user.
+     *
+     * @return A future, completed as {@link #sendCreateLogin(String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendCreateLoginAsync(String username, String password) {
+        return request("CreateLogin", username, password).thenApply(Response::isSuccess);
     }
 
     /**
@@ -358,23 +714,8 @@ public boolean sendCreateLogin(String username, String password) throws IOExcept
      * @since 0.0.1
      */
     public String sendLogin(String username, String password) throws IOException {
-        sendCommand(new String[]{"Login", username, password});
-
-        waitForResultResponse();
-        if (lastMessage.get(1).equals("true")) {
-            String token = lastMessage.get(2);
-            LoginModel login = new LoginModel(username, password, token);
-            serviceLocator.setCurrentLogin(login);
-            try {
-                serviceLocator.getDb().getLoginDao().create(login);
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            lastMessage.clear();
-            return token;
-        }
-        lastMessage.clear();
-        return null;
+        LoginModel login = await(sendLoginAsync(new LoginModel(username, password, null)));
+        return login != null ? login.getToken() : null;
     }
 
     /**
@@ -388,22 +729,32 @@ public String sendLogin(String username, String password) throws IOException {
      * @since 0.0.2
      */
     public LoginModel sendLogin(LoginModel login) throws IOException {
-        sendCommand(new String[]{"Login", login.getUsername(), login.getPassword()});
+        return await(sendLoginAsync(login));
+    }
 
-        waitForResultResponse();
-        if (lastMessage.get(1).equals("true")) {
-            login.setToken(lastMessage.get(2));
+    /**
+     * Login to the server, without waiting for the result.
+     *
+     * @param login An LoginModel object containing the username and password.
+     *
+     * @return A future, completed as {@link #sendLogin(LoginModel)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<LoginModel> sendLoginAsync(LoginModel login) {
+        return request("Login", login.getUsername(), login.getPassword()).thenApply(response -> {
+            if (!response.isSuccess() || response.getValues().isEmpty()) {
+                return null;
+            }
+            login.setToken(response.getValues().get(0));
             serviceLocator.setCurrentLogin(login);
             try {
                 serviceLocator.getDb().getLoginDao().create(login);
             } catch (SQLException e) {
                 e.printStackTrace();
             }
-            lastMessage.clear();
             return login;
-        }
-        lastMessage.clear();
-        return null;
+        });
     }
 
     /**
@@ -439,12 +790,21 @@ public String getToken() {
      * @since 0.0.1
      */
     public boolean sendChangePassword(String token, String newPassword) throws IOException {
-        sendCommand(new String[]{"ChangePassword", token, newPassword});
+        return await(sendChangePasswordAsync(token, newPassword));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+    /**
+     * Overwrite the password of currently logged in user, without waiting for the result.
+     *
+     * @param token       A string containing a token given by the server.
+     * @param newPassword A string containing the new password to overwrite.
+     *
+     * @return A future, completed as {@link #sendChangePassword(String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendChangePasswordAsync(String token, String newPassword) {
+        return request("ChangePassword", token, newPassword).thenApply(Response::isSuccess);
     }
 
     /**
@@ -458,12 +818,20 @@ public boolean sendChangePassword(String token, String newPassword) throws IOExc
      * @since 0.0.1
      */
     public boolean sendDeleteLogin(String token) throws IOException {
-        sendCommand(new String[]{"DeleteLogin", token});
+        return await(sendDeleteLoginAsync(token));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+    /**
+     * Delete the currently logged in user from the server, without waiting for the result.
+     *
+     * @param token A string containing a token given by the server.
+     *
+     * @return A future, completed as {@link #sendDeleteLogin(String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendDeleteLoginAsync(String token) {
+        return request("DeleteLogin", token).thenApply(Response::isSuccess);
     }
 
     /**
@@ -475,12 +843,18 @@ public boolean sendDeleteLogin(String token) throws IOException {
      * @since 0.0.1
      */
     public boolean sendLogout() throws IOException {
-        sendCommand(new String[]{"Logout"});
+        return await(sendLogoutAsync());
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+    /**
+     * Logs the current user out from the server, without waiting for the result.
+     *
+     * @return A future, completed as {@link #sendLogout()} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendLogoutAsync() {
+        return request("Logout").thenApply(Response::isSuccess);
     }
 
     /**
@@ -497,19 +871,31 @@ public boolean sendLogout() throws IOException {
      * @since 0.0.1
      */
     public boolean sendCreateChatroom(String token, String name, boolean isPublic) throws IOException {
-        sendCommand(new String[]{"CreateChatroom", token, name, (isPublic ? "true" : "false")});
+        return await(sendCreateChatroomAsync(token, name, isPublic));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        if (result) {
-            try {
-                serviceLocator.getDb().getGroupChatOrCreate(name, isPublic ? ChatType.PublicGroupChat : ChatType.PrivateGroupChat);
-            } catch (SQLException e) {
-                e.printStackTrace();
+    /**
+     * Creates a new chatroom, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param name     A string containing the name for the room to be created.
+     * @param isPublic A boolean defining whether the room should be public (true) or private (false)
+     *
+     * @return A future, completed as {@link #sendCreateChatroom(String, String, boolean)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendCreateChatroomAsync(String token, String name, boolean isPublic) {
+        return request("CreateChatroom", token, name, (isPublic ? "true" : "false")).thenApply(response -> {
+            if (response.isSuccess()) {
+                try {
+                    serviceLocator.getDb().getGroupChatOrCreate(name, isPublic ? ChatType.PublicGroupChat : ChatType.PrivateGroupChat);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
             }
-        }
-        lastMessage.clear();
-        return result;
+            return response.isSuccess();
+        });
     }
 
     /**
@@ -526,22 +912,34 @@ public boolean sendCreateChatroom(String token, String name, boolean isPublic) t
      * @since 0.0.1
      */
     public boolean sendJoinChatroom(String token, String chatroom, String username) throws IOException {
-        sendCommand(new String[]{"JoinChatroom", token, chatroom, username});
+        return await(sendJoinChatroomAsync(token, chatroom, username));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        if (result) {
-            try {
-                UserModel user = serviceLocator.getDb().getUserOrCreate(username);
-                // TODO: We can't really know the chat type, so we have to guess it's public
-                ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
-                chat.addMember(user);
-            } catch (SQLException e) {
-                e.printStackTrace();
+    /**
+     * Adds a given user to a given chatroom, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param chatroom A string containing the name for the room to be created.
+     * @param username A string containing the name of the user to be added.
+     *
+     * @return A future, completed as {@link #sendJoinChatroom(String, String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendJoinChatroomAsync(String token, String chatroom, String username) {
+        return request("JoinChatroom", token, chatroom, username).thenApply(response -> {
+            if (response.isSuccess()) {
+                try {
+                    UserModel user = serviceLocator.getDb().getUserOrCreate(username);
+                    // TODO: We can't really know the chat type, so we have to guess it's public
+                    ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
+                    chat.addMember(user);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
             }
-        }
-        lastMessage.clear();
-        return result;
+            return response.isSuccess();
+        });
     }
 
     /**
@@ -575,22 +973,34 @@ public boolean sendJoinChatroom(String token, String chatroom, UserModel user) t
      * @since 0.0.1
      */
     public boolean sendLeaveChatroom(String token, String chatroom, String username) throws IOException {
-        sendCommand(new String[]{"LeaveChatroom", token, chatroom, username});
+        return await(sendLeaveChatroomAsync(token, chatroom, username));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        if (result) {
-            try {
-                UserModel user = serviceLocator.getDb().getUserOrCreate(username);
-                // TODO: We can't really know the chat type, so we have to guess it's public
-                ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
-                chat.removeMember(user);
-            } catch (SQLException e) {
-                e.printStackTrace();
+    /**
+     * Removes a user from a given chatroom, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param chatroom A string containing the name of the room.
+     * @param username A string containing the name of the user to be removed.
+     *
+     * @return A future, completed as {@link #sendLeaveChatroom(String, String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendLeaveChatroomAsync(String token, String chatroom, String username) {
+        return request("LeaveChatroom", token, chatroom, username).thenApply(response -> {
+            if (response.isSuccess()) {
+                try {
+                    UserModel user = serviceLocator.getDb().getUserOrCreate(username);
+                    // TODO: We can't really know the chat type, so we have to guess it's public
+                    ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
+                    chat.removeMember(user);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
             }
-        }
-        lastMessage.clear();
-        return result;
+            return response.isSuccess();
+        });
     }
 
     /**
@@ -620,21 +1030,32 @@ public boolean sendLeaveChatroom(String token, String chatroom, UserModel user)
      * @since 0.0.1
      */
     public boolean sendDeleteChatroom(String token, String chatroom) throws IOException {
-        sendCommand(new String[]{"DeleteChatroom", token, chatroom});
+        return await(sendDeleteChatroomAsync(token, chatroom));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        if (result) {
-            try {
-                // TODO: We can't really know the chat type, so we have to guess it's public
-                ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
-                serviceLocator.getDb().getChatDao().delete(chat);
-            } catch (SQLException e) {
-                e.printStackTrace();
+    /**
+     * Deletes a chatroom, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param chatroom A string containing the name of the room.
+     *
+     * @return A future, completed as {@link #sendDeleteChatroom(String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendDeleteChatroomAsync(String token, String chatroom) {
+        return request("DeleteChatroom", token, chatroom).thenApply(response -> {
+            if (response.isSuccess()) {
+                try {
+                    // TODO: We can't really know the chat type, so we have to guess it's public
+                    ChatModel chat = serviceLocator.getDb().getGroupChatOrCreate(chatroom, ChatType.PublicGroupChat);
+                    serviceLocator.getDb().getChatDao().delete(chat);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
             }
-        }
-        lastMessage.clear();
-        return result;
+            return response.isSuccess();
+        });
     }
 
     /**
@@ -648,13 +1069,24 @@ public boolean sendDeleteChatroom(String token, String chatroom) throws IOExcept
      * @since 0.0.1
      */
     public ArrayList<String> sendListChatrooms(String token) throws IOException {
-        sendCommand(new String[]{"ListChatrooms", token});
+        return await(sendListChatroomsAsync(token));
+    }
 
-        waitForResultResponse();
-        if (lastMessage.get(1).equals("true")) {
-            lastMessage.remove("Result");
-            lastMessage.remove("true");
-            ArrayList<String> groupChatList = new ArrayList<>(lastMessage);
+    /**
+     * Returns a list of all public chatrooms, without waiting for the result.
+     *
+     * @param token A string containing a token given by the server.
+     *
+     * @return A future, completed as {@link #sendListChatrooms(String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<ArrayList<String>> sendListChatroomsAsync(String token) {
+        return request("ListChatrooms", token).thenApply(response -> {
+            if (!response.isSuccess()) {
+                return null;
+            }
+            ArrayList<String> groupChatList = new ArrayList<>(response.getValues());
 
             // Save the list to the DB
             DatabaseController db = serviceLocator.getDb();
@@ -665,12 +1097,8 @@ public ArrayList<String> sendListChatrooms(String token) throws IOException {
                     e.printStackTrace();
                 }
             });
-
-            lastMessage.clear();
             return groupChatList;
-        }
-        lastMessage.clear();
-        return null;
+        });
     }
 
     /**
@@ -682,12 +1110,7 @@ public ArrayList<String> sendListChatrooms(String token) throws IOException {
      * @since 0.0.1
      */
     public boolean sendPing() throws IOException {
-        sendCommand(new String[]{"Ping"});
-
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+        return await(request("Ping").thenApply(Response::isSuccess));
     }
 
     /**
@@ -699,12 +1122,20 @@ public boolean sendPing() throws IOException {
      * @since 0.0.1
      */
     public boolean sendPing(String token) throws IOException {
-        sendCommand(new String[]{"Ping", token});
+        return await(sendPingAsync(token));
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        lastMessage.clear();
-        return result;
+    /**
+     * Sends a ping to the server, without waiting for the result.
+     *
+     * @param token A string containing a token given by the server.
+     *
+     * @return A future, completed as {@link #sendPing(String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendPingAsync(String token) {
+        return request("Ping", token).thenApply(Response::isSuccess);
     }
 
     /**
@@ -721,46 +1152,81 @@ public boolean sendPing(String token) throws IOException {
      * @since 0.0.1
      */
     public MessageModel sendSendMessage(String token, String target, String message) throws IOException {
+        return await(sendSendMessageAsync(token, target, message));
+    }
+
+    /**
+     * Sends a message to a given user or chatroom, without waiting for the result.
+     *
+     * @param token   A string containing a token given by the server.
+     * @param target  A string containing the name of a chatroom or a user.
+     * @param message A string containing the message (max length of 1024 characters).
+     *
+     * @return A future, completed as {@link #sendSendMessage(String, String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<MessageModel> sendSendMessageAsync(String token, String target, String message) {
         if (message.length() > 1024) {
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
-        sendCommand(new String[]{"SendMessage", token, target, message});
-
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
-        MessageModel messageObject = null;
-        if (result) {
+        return request("SendMessage", token, target, message).thenCompose(response -> {
+            if (!response.isSuccess()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            DatabaseController db = serviceLocator.getDb();
+            LoginModel login = serviceLocator.getCurrentLogin();
             try {
-                DatabaseController db = serviceLocator.getDb();
-                LoginModel login = serviceLocator.getCurrentLogin();
-                ChatModel chat = null;
-                List<UserModel> results = db.getUserDao().queryBuilder().where().eq("username", target).query();
-                if (results.size() != 0) {
+                if (db.findUser(target) != null) {
                     // It's a message which is between two users
-                    chat = db.getGroupChatOrCreate(login.getUsername() + "_" + target, ChatType.DirectChat);
-                } else {
-                    List<ChatModel> results2 = db.getChatDao().queryBuilder().where().eq("name", target).query();
-                    if (results.size() != 0) {
-                        // It's a message which is inside a known group chat (public, private)
-                        chat = results2.get(0);
-                    } else {
-                        // It's a message for a group we don't know yet
-                        ArrayList<String> groupList = sendListChatrooms(login.getToken());
-                        for (String groupInList : groupList) {
-                            if (groupInList.equals(target)) {
-                                chat = db.getGroupChatOrCreate(groupInList, ChatType.PublicGroupChat);
-                            }
-                        }
-                    }
+                    ChatModel chat = db.getGroupChatOrCreate(login.getUsername() + "_" + target, ChatType.DirectChat);
+                    return CompletableFuture.completedFuture(saveSentMessage(message, chat));
+                }
+                ChatModel knownChat = db.findChat(target);
+                if (knownChat != null) {
+                    // It's a message which is inside a known group chat (public, private)
+                    return CompletableFuture.completedFuture(saveSentMessage(message, knownChat));
                 }
-                messageObject = new MessageModel(message, chat, new Date(), db.getUserOrCreate(login.getUsername()));
-                db.getMessageDao().create(messageObject);
             } catch (SQLException e) {
                 e.printStackTrace();
+                return CompletableFuture.completedFuture(null);
             }
+            // It's a message for a group we don't know yet (sendListChatrooms adds it to the DB)
+            return sendListChatroomsAsync(login.getToken()).thenApply(groupList -> {
+                try {
+                    ChatModel chat = null;
+                    if (groupList != null && groupList.contains(target)) {
+                        chat = db.getGroupChatOrCreate(target, ChatType.PublicGroupChat);
+                    }
+                    return saveSentMessage(message, chat);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            });
+        });
+    }
+
+    /**
+     * Saves a message the logged in user has sent.
+     *
+     * @param message A string containing the message.
+     * @param chat    A ChatModel object containing the chat the message was sent to.
+     *
+     * @return An object containing the saved message, "null" if it could not be saved.
+     *
+     * @since 0.0.3
+     */
+    private MessageModel saveSentMessage(String message, ChatModel chat) {
+        try {
+            DatabaseController db = serviceLocator.getDb();
+            MessageModel messageObject = new MessageModel(message, chat, new Date(), db.getUserOrCreate(serviceLocator.getCurrentLogin().getUsername()));
+            db.saveMessage(messageObject);
+            return messageObject;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
         }
-        lastMessage.clear();
-        return messageObject;
     }
 
     /**
@@ -775,13 +1241,39 @@ public MessageModel sendSendMessage(String token, String target, String message)
      * @since 0.0.1
      */
     public boolean sendUserOnline(String token, String username) throws IOException {
-        sendCommand(new String[]{"UserOnline", token, username});
+        return await(sendUserOnlineAsync(token, username));
+    }
+
+    /**
+     * Checks whether the user is currently logged in, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param username A string containing the username of the wanted user.
+     *
+     * @return A future, completed as {@link #sendUserOnline(String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<Boolean> sendUserOnlineAsync(String token, String username) {
+        return request("UserOnline", token, username).thenApply(response -> {
+            saveUserOnline(username, response.isSuccess());
+            return response.isSuccess();
+        });
+    }
 
-        waitForResultResponse();
-        boolean result = Boolean.parseBoolean(lastMessage.get(1));
+    /**
+     * Saves whether a user is online, as sendUserOnline does. For when it is not yet known whether the name belongs to
+     * a user, and the result of "UserOnline" is requested directly.
+     *
+     * @param username A string containing the name of the user.
+     * @param online   A boolean, whether the user is currently logged in.
+     *
+     * @since 0.0.3
+     */
+    public void saveUserOnline(String username, boolean online) {
         try {
             UserModel user = serviceLocator.getDb().getUserOrCreate(username);
-            if (result) {
+            if (online) {
                 user.setOnline();
             } else {
                 user.setOffline();
@@ -790,8 +1282,6 @@ public boolean sendUserOnline(String token, String username) throws IOException
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        lastMessage.clear();
-        return result;
     }
 
     /**
@@ -822,13 +1312,25 @@ public boolean sendUserOnline(String token, UserModel user) throws IOException {
      * @since 0.0.1
      */
     public ArrayList<String> sendListChatroomUsers(String token, String chatroom) throws IOException {
-        sendCommand(new String[]{"ListChatroomUsers", token, chatroom});
+        return await(sendListChatroomUsersAsync(token, chatroom));
+    }
 
-        waitForResultResponse();
-        if (lastMessage.get(1).equals("true")) {
-            lastMessage.remove("Result");
-            lastMessage.remove("true");
-            ArrayList<String> usersList = new ArrayList<>(lastMessage);
+    /**
+     * Get a list of all members inside a chatroom, without waiting for the result.
+     *
+     * @param token    A string containing a token given by the server.
+     * @param chatroom A string containing the name of the chatroom.
+     *
+     * @return A future, completed as {@link #sendListChatroomUsers(String, String)} returns.
+     *
+     * @since 0.0.3
+     */
+    public CompletableFuture<ArrayList<String>> sendListChatroomUsersAsync(String token, String chatroom) {
+        return request("ListChatroomUsers", token, chatroom).thenApply(response -> {
+            if (!response.isSuccess()) {
+                return null;
+            }
+            ArrayList<String> usersList = new ArrayList<>(response.getValues());
             if (usersList.size() > 0) {
                 try {
                     // TODO: We can't really know the chat type, so we have to guess it's public
@@ -846,14 +1348,11 @@ public ArrayList<String> sendListChatroomUsers(String token, String chatroom) th
                     e.printStackTrace();
                 }
             }
-
-            lastMessage.clear();
             return usersList;
-        }
-        lastMessage.clear();
-        return null;
+        });
     }
 
+
     /**
      * Creates a normal socket to the server.
      *
@@ -866,6 +1365,8 @@ public ArrayList<String> sendListChatroomUsers(String token, String chatroom) th
     public void createStandardSocket(String ipAddress, int port) throws IOException {
         logger.info("Connecting to server at: " + ipAddress + ":" + port);
         socket = new Socket(ipAddress, port);
+        // Commands are flushed when they are complete (see sendBatch), so don't let them wait for earlier ones
+        socket.setTcpNoDelay(true);
     }
 
     /**
@@ -894,6 +1395,7 @@ public void createSecureSocket(String ipAddress, int port) throws IOException {
         // Creating Client Sockets
         SSLSocketFactory sslsocketfactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
         socket = sslsocketfactory.createSocket(ipAddress, port);
+        socket.setTcpNoDelay(true);
 
         // The next line is entirely optional !!
         // The SSL handshake would happen automatically, the first time we send data.
@@ -938,8 +1440,14 @@ public static boolean isValidPortNumber(int port) {
      */
     @Override
     public void close() throws IOException {
+        failPendingCommands(new EOFException("Connection to the server closed"));
         if (socket != null) {
             socket.close();
         }
+        // Let the handler threads finish what already arrived
+        resultHandler.shutdown();
+        for (ExecutorService handler : messageHandlers) {
+            handler.shutdown();
+        }
     }
 }
@@ -779,12 +779,8 @@ public void onMessageErrorEvent(String errorMessage) {
     @Override
     public void onMessageTextEvent(UserModel user, ChatModel chat, MessageModel message) {
         // The server also sends a message when we send one. So only show messages without our username.
+        // The backend has already saved the message.
         if (!user.getUsername().equals(serviceLocator.getCurrentLogin().getUsername())) {
-            try {
-                serviceLocator.getDb().getMessageDao().create(message);
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
             System.out.println(I18nController.get("console.messageText.init",
                 user.getUsername(),
                 chat.getName(),
@@ -22,6 +22,7 @@
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class DashboardController extends Controller<DashboardModel, DashboardView> implements MessageTextEventListener {
@@ -145,30 +146,37 @@ private void clickOnAddChat() {
         // "null" means user canceled, length "0" means no user name given, so repeat until right
         while (chatWith != null && chatWith.length() == 0 && !validTarget) {
             chatWith = showAddChatDialogue();
-
-            // Check if it's a group chat
-            ArrayList<String> groupChats = new ArrayList<>();
+            if (chatWith == null) break;
+
+            // Ask whether it's a group chat (and update local list of known public group chats), and whether it's a
+            // user, both at once. Only save the user, once we know it's not a group chat.
+            final String target = chatWith;
+            AtomicReference<CompletableFuture<ArrayList<String>>> groupChatsResult = new AtomicReference<>();
+            AtomicReference<CompletableFuture<BackendController.Response>> userOnlineResult = new AtomicReference<>();
+            ArrayList<String> groupChats = null;
+            Boolean userOnline = null;
             try {
-                // Update local list of known public group chats
-                groupChats = backend.sendListChatrooms(token);
+                backend.sendBatch(() -> {
+                    groupChatsResult.set(backend.sendListChatroomsAsync(token));
+                    userOnlineResult.set(backend.request("UserOnline", token, target));
+                });
+                groupChats = BackendController.await(groupChatsResult.get());
+                userOnline = BackendController.await(userOnlineResult.get()).isSuccess();
             } catch (IOException e) {
                 // Ignore
             }
-            if (groupChats.contains(chatWith)) {
+            if (groupChats != null && groupChats.contains(chatWith)) {
                 validTarget = true;
                 targetIsGroup = true;
-            } else {
+            } else if (userOnline != null) {
                 // Check if it's a user
-                try {
-                    if (backend.sendUserOnline(token, chatWith)) {
-                        validTarget = true;
-                        targetIsUser = true;
-                    } else {
-                        targetIsGroup = true;
-                        targetIsNewGroup = true;
-                    }
-                } catch (IOException e) {
-                    // Ignore
+                if (userOnline) {
+                    backend.saveUserOnline(chatWith, true);
+                    validTarget = true;
+                    targetIsUser = true;
+                } else {
+                    targetIsGroup = true;
+                    targetIsNewGroup = true;
                 }
             }
         }
@@ -179,12 +187,12 @@ private void clickOnAddChat() {
             ChatModel chat;
             if (targetIsUser) chat = db.getGroupChatOrCreate(login.getUsername() + "_" + chatWith, ChatType.DirectChat);
             else if (targetIsGroup) {
-                if (targetIsNewGroup) {
-                    // TODO: Let the user choose between public and private
-                    if (!backend.sendCreateChatroom(token, chatWith, true)) {
-                        showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
-                        return;
-                    }
+                // Create the group chat if needed. Only join it once it exists: if creating fails, the user must not
+                // end up a member of a chat that the dashboard doesn't show.
+                // TODO: Let the user choose between public and private
+                if (targetIsNewGroup && !backend.sendCreateChatroom(token, chatWith, true)) {
+                    showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
+                    return;
                 }
                 if (backend.sendJoinChatroom(token, chatWith, login.getUsername())) {
                     chat = db.getGroupChatOrCreate(chatWith, ChatType.PublicGroupChat);
@@ -310,6 +318,8 @@ private void clickOnChatList() {
             showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
         }
 
+        // Make sure the messages which just arrived are in the db, too
+        db.flushMessages();
         view.removeAllMessages();
         view.navBarTitleRightProperty().set(chat.getName());
         ForeignCollection<MessageModel> messages = chat.getMessages();
@@ -337,6 +347,8 @@ private void clickOnContactList() {
             showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
         }
 
+        // Make sure the messages which just arrived are in the db, too
+        db.flushMessages();
         view.removeAllMessages();
         view.navBarTitleRightProperty().set(selectedItem.getUsername());
         ForeignCollection<MessageModel> messages = chat.getMessages();
@@ -367,15 +379,28 @@ private void clickOnSendMessage() {
                         break;
                     }
                 }
-                if (isUser && !backend.sendUserOnline(login.getToken(), view.getNavBarTitleRight())) {
-                    showErrorDialogue("gui.dashboard.sendMessage.error.offline.title", "gui.dashboard.sendMessage.error.offline.content");
-                    return;
-                }
 
-                MessageModel message = backend.sendSendMessage(login.getToken(), view.getNavBarTitleRight(), view.getMessage().getText());
+                // Check whether the user is online, and send the message right behind it (the server won't deliver
+                // it to an offline user)
+                final boolean checkOnline = isUser;
+                final String target = view.getNavBarTitleRight();
+                final String text = view.getMessage().getText();
+                AtomicReference<CompletableFuture<Boolean>> online = new AtomicReference<>(CompletableFuture.completedFuture(true));
+                AtomicReference<CompletableFuture<MessageModel>> sent = new AtomicReference<>();
+                backend.sendBatch(() -> {
+                    if (checkOnline) {
+                        online.set(backend.sendUserOnlineAsync(login.getToken(), target));
+                    }
+                    sent.set(backend.sendSendMessageAsync(login.getToken(), target, text));
+                });
+                // Look at the message first: if the user came online in between, it was delivered after all
+                boolean userOnline = BackendController.await(online.get());
+                MessageModel message = BackendController.await(sent.get());
                 if (message != null) {
                     view.getMessage().setText("");
                     view.addMessage(message);
+                } else if (!userOnline) {
+                    showErrorDialogue("gui.dashboard.sendMessage.error.offline.title", "gui.dashboard.sendMessage.error.offline.content");
                 } else {
                     showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
                 }
@@ -389,13 +414,8 @@ private void clickOnSendMessage() {
     @Override
     public void onMessageTextEvent(UserModel user, ChatModel chat, MessageModel message) {
         // The server also sends a message when we send one. So only show messages without our username.
+        // The backend has already saved the message.
         if (!user.getUsername().equals(serviceLocator.getCurrentLogin().getUsername())) {
-            try {
-                serviceLocator.getDb().getMessageDao().create(message);
-            } catch (SQLException e) {
-                showErrorDialogue("gui.dashboard.error.program.title", "gui.dashboard.error.program.content");
-            }
-
             if (chat.getName().equals(view.getNavBarTitleRight())) {
                 view.addMessage(message);
             }
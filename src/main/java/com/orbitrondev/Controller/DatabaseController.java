@@ -3,6 +3,7 @@
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.SelectArg;
@@ -10,11 +11,17 @@
 import com.j256.ormlite.table.TableUtils;
 import com.orbitrondev.Entity.*;
 import com.orbitrondev.Entity.SupportTables.ChatUserModel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A class to create a database connection.
@@ -24,6 +31,8 @@
  * @since 0.0.1
  */
 public class DatabaseController implements Closeable {
+    private static final Logger logger = LogManager.getLogger(DatabaseController.class);
+
     private ConnectionSource connectionSource;
 
     private Dao<ChatModel, String> chatDao;
@@ -34,6 +43,59 @@ public class DatabaseController implements Closeable {
     private Dao<LoginModel, String> loginDao;
     private Dao<ServerModel, String> serverDao;
 
+    /**
+     * The settings used for every connection. The database is only a cache of what the server knows, so in WAL mode it
+     * is enough to sync at checkpoints (synchronous=NORMAL): a crash may lose the last few messages, but never damages
+     * the database. Reading through memory-mapped I/O saves copying pages.
+     */
+    private static final String[] CONNECTION_SETTINGS = {
+            "PRAGMA journal_mode = WAL",
+            "PRAGMA synchronous = NORMAL",
+            "PRAGMA mmap_size = 268435456", // 256 MB
+    };
+
+    /**
+     * The changes to the database layout, which TableUtils does not do for us. MIGRATIONS[n] brings a database from
+     * version n to n + 1. The version is stored in the database itself (PRAGMA user_version). Databases created before
+     * versions were stored have version 0, as do new ones.
+     */
+    private static final String[][] MIGRATIONS = {
+            // 1: Indexes for the columns we search by
+            {
+                    "CREATE INDEX IF NOT EXISTS users_username_idx ON users (username)",
+                    "CREATE INDEX IF NOT EXISTS chats_name_idx ON chats (name)",
+                    "CREATE INDEX IF NOT EXISTS messages_chat_id_idx ON messages (chat_id)",
+                    "CREATE INDEX IF NOT EXISTS chatusermodel_chat_id_idx ON chatusermodel (chat_id)",
+                    "CREATE INDEX IF NOT EXISTS chatusermodel_user_id_idx ON chatusermodel (user_id)",
+            },
+    };
+    static final int SCHEMA_VERSION = MIGRATIONS.length;
+
+    // The lookups done for every message, prepared once. Only used while holding the lock of this object.
+    private PreparedQuery<UserModel> userByNameQuery;
+    private PreparedQuery<ChatModel> chatByNameQuery;
+
+    /**
+     * Messages are not saved one by one, but collected, and saved together in one transaction by the writer thread:
+     * as soon as there are MESSAGE_BATCH_SIZE of them, or MESSAGE_FLUSH_MILLIS after the first one arrived.
+     */
+    private static final int MESSAGE_BATCH_SIZE = 256;
+    private static final long MESSAGE_FLUSH_MILLIS = 50;
+
+    // The writer has a connection of its own. A JdbcConnectionSource has only one connection, and whatever other
+    // threads wrote on it during the writer's transaction would be committed or rolled back together with the batch.
+    private ConnectionSource messageConnectionSource;
+    private Dao<MessageModel, String> messageWriterDao;
+
+    private final ArrayList<MessageModel> pendingMessages = new ArrayList<>();
+    // The messages waiting or being saved right now, to notice if the same message is saved twice
+    private final Set<MessageModel> unsavedMessages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long firstPendingMessageTime;
+    private final Object messageWriteLock = new Object();
+    private volatile boolean closed = false;
+    private final Thread messageWriter = new Thread(this::writeMessages, "MessageWriter");
+    private final Thread flushOnExit = new Thread(this::flushMessages, "MessageFlushOnExit");
+
     /**
      * Create a database connection
      *
@@ -51,6 +113,16 @@ public DatabaseController(String databaseLocation) {
 
             // setup our database and DAOs
             setupDatabase();
+            messageConnectionSource = new JdbcConnectionSource(databaseUrl);
+            messageWriterDao = DaoManager.createDao(messageConnectionSource, MessageModel.class);
+            for (String setting : CONNECTION_SETTINGS) {
+                messageWriterDao.executeRaw(setting);
+            }
+
+            messageWriter.setDaemon(true);
+            messageWriter.start();
+            // The program is often ended with System.exit(), so make sure the last messages are saved then, too
+            Runtime.getRuntime().addShutdownHook(flushOnExit);
         } catch (SQLException e) {
             // TODO: Handle exception
             e.printStackTrace();
@@ -77,6 +149,10 @@ private void setupDatabase() throws SQLException {
         loginDao = DaoManager.createDao(connectionSource, LoginModel.class);
         serverDao = DaoManager.createDao(connectionSource, ServerModel.class);
 
+        for (String setting : CONNECTION_SETTINGS) {
+            chatDao.executeRaw(setting);
+        }
+
         /*
          * Create the tables, if they don't exist yet.
          */
@@ -88,6 +164,38 @@ private void setupDatabase() throws SQLException {
 
         TableUtils.createTableIfNotExists(connectionSource, LoginModel.class);
         TableUtils.createTableIfNotExists(connectionSource, ServerModel.class);
+
+        migrateSchema();
+
+        userByNameQuery = userDao.queryBuilder().where().eq("username", new SelectArg()).prepare();
+        chatByNameQuery = chatDao.queryBuilder().where().eq("name", new SelectArg()).prepare();
+    }
+
+    /**
+     * Bring the layout of the database up to date, see MIGRATIONS. Each step is done in its own transaction, together
+     * with storing the new version.
+     *
+     * @throws SQLException If an SQL error occurs.
+     * @since 0.0.3
+     */
+    private void migrateSchema() throws SQLException {
+        int version = (int) chatDao.queryRawValue("PRAGMA user_version");
+        if (version > SCHEMA_VERSION) {
+            logger.warn("Database has version " + version + ", which is newer than this program (" + SCHEMA_VERSION + ")");
+            return;
+        }
+        for (; version < SCHEMA_VERSION; version++) {
+            final int newVersion = version + 1;
+            final String[] statements = MIGRATIONS[version];
+            TransactionManager.callInTransaction(connectionSource, () -> {
+                for (String statement : statements) {
+                    chatDao.executeRaw(statement);
+                }
+                chatDao.executeRaw("PRAGMA user_version = " + newVersion);
+                return null;
+            });
+            logger.info("Database updated to version " + newVersion);
+        }
     }
 
     /**
@@ -97,6 +205,21 @@ private void setupDatabase() throws SQLException {
      */
     @Override
     public void close() {
+        synchronized (pendingMessages) {
+            closed = true;
+            pendingMessages.notifyAll();
+        }
+        flushMessages();
+        try {
+            Runtime.getRuntime().removeShutdownHook(flushOnExit);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+        if (messageConnectionSource != null) try {
+            messageConnectionSource.close();
+        } catch (IOException e) {
+            // we don't care
+        }
         if (connectionSource != null) try {
             connectionSource.close();
         } catch (IOException e) {
@@ -105,6 +228,119 @@ public void close() {
     }
 
 
+    /**
+     * Saves a message, soon: it is only written together with others, by the writer thread. Saving a message which is
+     * already saved (or waiting to be) does nothing. Use {@link #flushMessages()} before reading messages from the
+     * database, to be sure to get all of them.
+     *
+     * @param message A MessageModel object containing the message.
+     *
+     * @since 0.0.3
+     */
+    public void saveMessage(MessageModel message) {
+        if (message == null || message.getId() != 0) {
+            return;
+        }
+        synchronized (pendingMessages) {
+            if (closed) {
+                logger.warn("Message not saved, the database is closed");
+                return;
+            }
+            if (!unsavedMessages.add(message)) {
+                // Already waiting
+                return;
+            }
+            if (pendingMessages.isEmpty()) {
+                firstPendingMessageTime = System.currentTimeMillis();
+            }
+            pendingMessages.add(message);
+            if (pendingMessages.size() == 1 || pendingMessages.size() >= MESSAGE_BATCH_SIZE) {
+                pendingMessages.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Saves all messages which are still waiting, in one transaction, and returns once they are saved. If the
+     * transaction fails, the messages are saved one by one instead; those which still can't be saved wait for the next
+     * flush.
+     *
+     * @since 0.0.3
+     */
+    public void flushMessages() {
+        synchronized (messageWriteLock) {
+            ArrayList<MessageModel> batch;
+            synchronized (pendingMessages) {
+                if (pendingMessages.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pendingMessages);
+                pendingMessages.clear();
+            }
+            ArrayList<MessageModel> failed = new ArrayList<>();
+            try {
+                // Not callBatchTasks(): it commits whatever was saved before an error
+                TransactionManager.callInTransaction(messageConnectionSource, () -> {
+                    for (MessageModel message : batch) {
+                        messageWriterDao.create(message);
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                // The transaction was rolled back, so none of them is saved; create() replaces the ids they got in it
+                logger.warn("Saving " + batch.size() + " messages together failed, saving them one by one", e);
+                for (MessageModel message : batch) {
+                    try {
+                        messageWriterDao.create(message);
+                    } catch (SQLException e1) {
+                        failed.add(message);
+                    }
+                }
+            }
+            synchronized (pendingMessages) {
+                if (!failed.isEmpty()) {
+                    logger.error(failed.size() + " messages not saved" + (closed ? "" : ", trying again later"));
+                    if (!closed) {
+                        // Keep them in front of the newer ones, and keep them in unsavedMessages
+                        pendingMessages.addAll(0, failed);
+                        firstPendingMessageTime = System.currentTimeMillis();
+                        batch.removeAll(failed);
+                    }
+                }
+                unsavedMessages.removeAll(batch);
+            }
+        }
+    }
+
+    /**
+     * The writer thread: waits until there are enough messages, or the first one has waited long enough, and saves
+     * them.
+     *
+     * @since 0.0.3
+     */
+    private void writeMessages() {
+        while (true) {
+            synchronized (pendingMessages) {
+                try {
+                    while (pendingMessages.isEmpty() && !closed) {
+                        pendingMessages.wait();
+                    }
+                    long remaining;
+                    while (pendingMessages.size() < MESSAGE_BATCH_SIZE && !closed
+                            && (remaining = firstPendingMessageTime + MESSAGE_FLUSH_MILLIS - System.currentTimeMillis()) > 0) {
+                        pendingMessages.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            flushMessages();
+        }
+    }
+
     /**
      * @return DAO object for the chats
      *
@@ -166,6 +402,7 @@ public Dao<ServerModel, String> getServerDao() {
     /**
      * Check inside the database if the user already exists and return it, or create a new object for it, and save it in
      * the database.
+     * Synchronized, because the handler threads of the backend may look for the same user at once.
      *
      * @param username A string containing the name of the user
      *
@@ -174,21 +411,34 @@ public Dao<ServerModel, String> getServerDao() {
      * @throws SQLException If an SQL error occurs.
      * @since 0.0.2
      */
-    public UserModel getUserOrCreate(String username) throws SQLException {
-        UserModel user;
-        List<UserModel> results = userDao.queryBuilder().where().eq("username", username).query();
-        if (results.size() != 0) {
-            user = results.get(0);
-        } else {
+    public synchronized UserModel getUserOrCreate(String username) throws SQLException {
+        UserModel user = findUser(username);
+        if (user == null) {
             user = new UserModel(username);
             userDao.create(user);
         }
         return user;
     }
 
+    /**
+     * Find a user inside the database.
+     *
+     * @param username A string containing the name of the user
+     *
+     * @return A UserModel object containing the user, "null" if there is none with this name.
+     *
+     * @throws SQLException If an SQL error occurs.
+     * @since 0.0.3
+     */
+    public synchronized UserModel findUser(String username) throws SQLException {
+        userByNameQuery.setArgumentHolderValue(0, username);
+        return userDao.queryForFirst(userByNameQuery);
+    }
+
     /**
      * Check inside the database if the chat already exists and return it, or create a new object for it, and save it in
      * the database.
+     * Synchronized, because the handler threads of the backend may look for the same chat at once.
      *
      * @param name A string containing the name of the group chat.
      *
@@ -197,18 +447,30 @@ public UserModel getUserOrCreate(String username) throws SQLException {
      * @throws SQLException If an SQL error occurs.
      * @since 0.0.2
      */
-    public ChatModel getGroupChatOrCreate(String name, ChatType chatType) throws SQLException {
-        ChatModel group;
-        List<ChatModel> results = chatDao.queryBuilder().where().eq("name", name).query();
-        if (results.size() != 0) {
-            group = results.get(0);
-        } else {
+    public synchronized ChatModel getGroupChatOrCreate(String name, ChatType chatType) throws SQLException {
+        ChatModel group = findChat(name);
+        if (group == null) {
             group = new ChatModel(name, chatType);
             chatDao.create(group);
         }
         return group;
     }
 
+    /**
+     * Find a chat inside the database.
+     *
+     * @param name A string containing the name of the chat.
+     *
+     * @return A ChatModel object containing the chat, "null" if there is none with this name.
+     *
+     * @throws SQLException If an SQL error occurs.
+     * @since 0.0.3
+     */
+    public synchronized ChatModel findChat(String name) throws SQLException {
+        chatByNameQuery.setArgumentHolderValue(0, name);
+        return chatDao.queryForFirst(chatByNameQuery);
+    }
+
     /* Create Many-To-Many Relations ************************************************/
     /**
      * Source: https://github.com/j256/ormlite-jdbc/blob/master/src/test/java/com/j256/ormlite/examples/manytomany/ManyToManyMain.java
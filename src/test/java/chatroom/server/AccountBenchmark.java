@@ -0,0 +1,87 @@
+package chatroom.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress test for the account registry: many threads register new accounts,
+ * log in, and race each other to take the same names, either as an account or
+ * as a chatroom. Reports the throughput, and checks that no name was given out
+ * twice.
+ *
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes chatroom.server.AccountBenchmark [threads]
+ */
+public class AccountBenchmark {
+    private static final int ACCOUNTS_PER_THREAD = 500;
+    private static final int LOGINS_PER_THREAD = 5000;
+    private static final int CONTESTED_NAMES = 2000;
+
+    private interface Task {
+        void run(int thread);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int numThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+        System.out.println(numThreads + " threads");
+
+        run("registrations", numThreads, numThreads * ACCOUNTS_PER_THREAD, thread -> {
+            for (int i = 0; i < ACCOUNTS_PER_THREAD; i++) {
+                if (!Account.add(new Account("user" + thread + "_" + i, "password")))
+                    throw new IllegalStateException("Registration failed");
+            }
+        });
+
+        run("logins", numThreads, numThreads * LOGINS_PER_THREAD, thread -> {
+            for (int i = 0; i < LOGINS_PER_THREAD; i++) {
+                Account account = Account.exists("user" + ((thread + i) % numThreads) + "_" + (i % ACCOUNTS_PER_THREAD));
+                if (account == null || !account.checkPassword("password"))
+                    throw new IllegalStateException("Login failed");
+            }
+        });
+
+        // Every thread tries to take every contested name: even threads as
+        // accounts, odd threads as chatrooms. Exactly one must succeed per name.
+        AtomicInteger taken = new AtomicInteger();
+        run("contested creates", numThreads, numThreads * CONTESTED_NAMES, thread -> {
+            for (int i = 0; i < CONTESTED_NAMES; i++) {
+                String name = "contested" + i;
+                boolean success;
+                if (thread % 2 == 0) success = Account.add(new Account(name, "password"));
+                else success = Chatroom.add(new Chatroom(name, true, "user0_0"));
+                if (success) taken.incrementAndGet();
+            }
+        });
+        int both = 0;
+        for (int i = 0; i < CONTESTED_NAMES; i++) {
+            if (Account.exists("contested" + i) != null && Chatroom.exists("contested" + i) != null) both++;
+        }
+        System.out.println(taken.get() + " of " + CONTESTED_NAMES + " contested names taken, "
+                + both + " taken by both an account and a chatroom");
+    }
+
+    private static void run(String name, int numThreads, int operations, Task task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run(thread);
+            });
+            threads[t].start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) t.join();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("%-18s %8d in %6.2f s, %9.0f per second%n", name, operations, seconds, operations / seconds);
+    }
+}
@@ -0,0 +1,96 @@
+package chatroom.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chatroom.server.message.Message;
+import chatroom.server.message.MessageText;
+
+/**
+ * Measures the CPU time per delivered message when sending to a chatroom with
+ * 1, 100 and 10,000 members, comparing encoding the message for every recipient
+ * with encoding it once and sharing the bytes. The connections do not write to
+ * a socket; they only take the bytes, as the non-blocking server would.
+ *
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes chatroom.server.BroadcastBenchmark
+ */
+public class BroadcastBenchmark {
+    private static final int[] ROOM_SIZES = {1, 100, 10000};
+    private static final int DELIVERIES = 2000000; // Per room size and variant
+
+    private static long bytesDelivered = 0; // So that nothing is optimized away
+    private static boolean encodePerRecipient;
+
+    /**
+     * A connection that takes the queued messages, as NioConnection does
+     */
+    private static class DiscardConnection implements Connection {
+        private Client client;
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void drain() {
+            Message msg;
+            while ((msg = client.getOutbound().poll()) != null) {
+                if (encodePerRecipient) {
+                    bytesDelivered += (msg.toString() + "\n").getBytes(StandardCharsets.UTF_8).length;
+                } else {
+                    ByteBuffer buffer = msg.toBuffer();
+                    bytesDelivered += buffer.remaining();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int nextUser = 0;
+
+        for (int roomSize : ROOM_SIZES) {
+            Chatroom chatroom = new Chatroom("bench" + roomSize, true, "bench");
+            for (int i = 0; i < roomSize; i++) {
+                String username = "user" + (nextUser++);
+                DiscardConnection connection = new DiscardConnection();
+                Client client = new Client(connection);
+                connection.client = client;
+                client.setAccount(new Account(username, "password"));
+                chatroom.addUser(username);
+            }
+
+            int messages = Math.max(1, DELIVERIES / roomSize);
+            for (boolean perRecipient : new boolean[] {true, false}) {
+                encodePerRecipient = perRecipient;
+                send(chatroom, messages / 10); // Warm up
+
+                long start = threads.getCurrentThreadCpuTime();
+                send(chatroom, messages);
+                long cpu = threads.getCurrentThreadCpuTime() - start;
+
+                System.out.printf("%6d members, %-20s %8.1f ns CPU per delivered message%n", roomSize,
+                        perRecipient ? "encode per recipient" : "encode once", (double) cpu / messages / roomSize);
+            }
+        }
+        System.out.println("(" + bytesDelivered + " bytes delivered)");
+    }
+
+    private static void send(Chatroom chatroom, int messages) {
+        for (int i = 0; i < messages; i++) {
+            chatroom.send(new MessageText("bench", chatroom.getName(), "Message number " + i + " for everyone"));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package chatroom.server;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.testng.Assert.*;
+
+public class JournalTest {
+    private Path file;
+    private FileChannel channel;
+
+    @BeforeMethod
+    public void createFile() throws IOException {
+        file = Files.createTempFile("JournalTest", ".log");
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * The records, framed as the writer thread does: length, content, CRC
+     */
+    private static ByteBuffer batch(String... names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        for (String name : names) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            new DataOutputStream(record).writeUTF(name);
+            crc.reset();
+            crc.update(record.toByteArray());
+            out.writeInt(record.size());
+            out.write(record.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private ArrayList<String> replay(long expectedBytes) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        assertEquals(Journal.replay(file, in -> names.add(in.readUTF())), expectedBytes);
+        return names;
+    }
+
+    @Test
+    public void failedBatchIsCutOff() throws IOException {
+        long valid = Journal.append(channel, 0, batch("alice", "bob"));
+        try {
+            Journal.append(new FailingChannel(channel, false), valid, batch("broken", "lost"));
+            fail("The write should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(channel.isOpen());
+        assertEquals(channel.size(), valid);
+        valid = Journal.append(channel, valid, batch("carol", "dave"));
+
+        assertEquals(replay(valid), Arrays.asList("alice", "bob", "carol", "dave"));
+        assertEquals(Files.size(file), valid);
+    }
+
+    @Test
+    public void unrepairableFileClosesChannel() throws IOException {
+        long valid = Journal.append(channel, 0, batch("alice", "bob"));
+        try {
+            Journal.append(new FailingChannel(channel, true), valid, batch("broken", "lost"));
+            fail("The write should have failed");
+        } catch (IOException e) {
+            assertEquals(e.getSuppressed().length, 1);
+        }
+        assertFalse(channel.isOpen());
+
+        // The broken record is still there, but replay stops before it
+        assertTrue(Files.size(file) > valid);
+        assertEquals(replay(valid), Arrays.asList("alice", "bob"));
+    }
+
+    /**
+     * Writes only the first few bytes of the first write, and then fails, like a
+     * full disk. Optionally, truncating fails too.
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final boolean failTruncate;
+
+        private FailingChannel(FileChannel channel, boolean failTruncate) {
+            this.channel = channel;
+            this.failTruncate = failTruncate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + 6);
+            channel.write(part);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) throw new IOException("Input/output error");
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
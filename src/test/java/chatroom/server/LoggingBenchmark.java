@@ -0,0 +1,88 @@
+package chatroom.server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import chatroom.server.message.Message;
+import chatroom.server.message.MessageText;
+import chatroom.server.message.Tokenizer;
+
+/**
+ * Measures how many messages per second one thread can receive and send, as
+ * the server does for every chat message, with different ways of logging:
+ *
+ * - logging off;
+ * - message contents logged, written to the file by the calling thread, as
+ *   the server used to do;
+ * - message contents logged, written by the AsyncHandler;
+ * - the server's default: AsyncHandler, message contents not logged.
+ *
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes chatroom.server.LoggingBenchmark
+ */
+public class LoggingBenchmark {
+    private static final int MESSAGES = 500000;
+
+    public static void main(String[] args) throws Exception {
+        Logger logger = Logger.getLogger("");
+        for (Handler h : logger.getHandlers()) logger.removeHandler(h);
+        File logFile = File.createTempFile("LoggingBenchmark", ".log");
+
+        byte[] line = "SendMessage|0123456789ABCDEF0123456789ABCDEF|room|Hello, how is everyone today?"
+                .getBytes(StandardCharsets.UTF_8);
+        Tokenizer tokens = new Tokenizer();
+
+        try {
+            for (int round = 1; round <= 2; round++) { // The first round also warms up the JIT
+                System.out.println("round " + round);
+
+                logger.setLevel(Level.WARNING);
+                Message.setLogPayloads(false);
+                run("logging off", line, tokens);
+
+                logger.setLevel(Level.FINE);
+                Message.setLogPayloads(true);
+                FileHandler fh = fileHandler(logFile);
+                logger.addHandler(fh);
+                run("contents, direct", line, tokens);
+                logger.removeHandler(fh);
+                fh.close();
+
+                AsyncHandler async = new AsyncHandler(fileHandler(logFile), 8192);
+                logger.addHandler(async);
+                run("contents, async", line, tokens);
+                Message.setLogPayloads(false);
+                run("default, async", line, tokens);
+                logger.removeHandler(async);
+                async.close();
+            }
+        } finally {
+            logFile.delete();
+        }
+    }
+
+    private static FileHandler fileHandler(File logFile) throws Exception {
+        FileHandler fh = new FileHandler(logFile.getPath());
+        fh.setFormatter(new SimpleFormatter());
+        fh.setLevel(Level.FINE);
+        return fh;
+    }
+
+    private static void run(String name, byte[] line, Tokenizer tokens) {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            tokens.reset(line, 0, line.length);
+            Message received = Message.parse(tokens);
+            if (received == null) throw new IllegalStateException("Invalid message");
+            bytes += new MessageText("bench", "room", tokens.get(3)).toBuffer().remaining();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %-18s %10.0f messages per second (%d bytes)%n", name, MESSAGES / seconds, bytes);
+    }
+}
@@ -0,0 +1,157 @@
+package chatroom.server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the latency of logins while accounts are being saved. Several
+ * threads log in as fast as they can, and we record how long each login takes
+ * in a histogram, in three phases:
+ *
+ * - no save running;
+ * - snapshots saved continuously, as the journal compaction does;
+ * - snapshots saved continuously while holding a lock that every login needs,
+ *   as saveAccounts did when it held the lock on the list of accounts.
+ *
+ * Passwords are hashed with a single iteration, so that the time of a login is
+ * mostly the time spent waiting, not hashing.
+ *
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -Xmx2g -cp target/classes:target/test-classes chatroom.server.LoginLatencyBenchmark [accounts]
+ */
+public class LoginLatencyBenchmark {
+    private static final int LOGIN_THREADS = 4;
+    private static final int PHASE_MILLIS = 10000;
+    private static final int MAX_MICROS = 1000000; // Longer logins are counted as this long
+
+    private static final Object registryLock = new Object();
+    private static volatile boolean lockLogins = false;
+
+    /**
+     * Counts logins by their latency, in microseconds
+     */
+    private static class Histogram {
+        private final long[] counts = new long[MAX_MICROS + 1];
+        private long total = 0;
+
+        void record(long nanos) {
+            counts[(int) Math.min(MAX_MICROS, nanos / 1000)]++;
+            total++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i <= MAX_MICROS; i++) counts[i] += other.counts[i];
+            total += other.total;
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(total * p / 100);
+            long seen = 0;
+            for (int i = 0; i <= MAX_MICROS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) return i;
+            }
+            return MAX_MICROS;
+        }
+
+        /**
+         * The number of logins in each power-of-two range of microseconds
+         */
+        void print() {
+            long from = 0;
+            for (long to = 1; from <= MAX_MICROS; to *= 2) {
+                long count = 0;
+                for (long i = from; i < to && i <= MAX_MICROS; i++) count += counts[(int) i];
+                if (count > 0) System.out.printf("    %7d - %7d us %10d%n", from, to - 1, count);
+                from = to;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int numAccounts = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        HashPolicy.setCurrent(new HashPolicy("PBKDF2WithHmacSHA1", 1));
+        ArrayList<Account> created = new ArrayList<>(numAccounts);
+        for (int i = 0; i < numAccounts; i++) {
+            Account account = new Account("user" + i, "password");
+            Account.add(account);
+            created.add(account);
+        }
+        System.out.println(numAccounts + " accounts, " + LOGIN_THREADS + " login threads");
+
+        Path snapFile = Files.createTempFile("accounts", ".snap");
+        try {
+            measure("no save", numAccounts, null);
+            measure("snapshot save", numAccounts, () -> {
+                // As Account.saveAccounts: copy the references, then write
+                Snapshot.save(snapFile, new ArrayList<>(created), Account::write);
+            });
+            measure("save holding lock", numAccounts, () -> {
+                lockLogins = true;
+                synchronized (registryLock) {
+                    Snapshot.save(snapFile, created, Account::write);
+                }
+            });
+        } finally {
+            Files.deleteIfExists(snapFile);
+        }
+    }
+
+    private static void measure(String name, int numAccounts, Runnable save) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        int[] saves = new int[1];
+        Thread saver = new Thread(() -> {
+            while (running.get() && save != null) {
+                save.run();
+                saves[0]++;
+            }
+        });
+        Histogram[] histograms = new Histogram[LOGIN_THREADS];
+        Thread[] threads = new Thread[LOGIN_THREADS];
+        for (int t = 0; t < LOGIN_THREADS; t++) {
+            Histogram histogram = new Histogram();
+            histograms[t] = histogram;
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                int i = thread;
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    login("user" + (i % numAccounts));
+                    histogram.record(System.nanoTime() - start);
+                    i += LOGIN_THREADS;
+                }
+            });
+        }
+
+        saver.start();
+        for (Thread t : threads) t.start();
+        Thread.sleep(PHASE_MILLIS);
+        running.set(false);
+        for (Thread t : threads) t.join();
+        saver.join();
+        lockLogins = false;
+
+        Histogram all = new Histogram();
+        for (Histogram histogram : histograms) all.add(histogram);
+        System.out.printf("%-18s %9d logins, %3d saves; p50 %6d us, p99 %6d us, p99.9 %7d us, max %7d us%n", name,
+                all.total, saves[0], all.percentile(50), all.percentile(99), all.percentile(99.9),
+                all.percentile(100));
+        all.print();
+    }
+
+    private static void login(String username) {
+        if (lockLogins) {
+            synchronized (registryLock) {
+                Account.exists(username);
+            }
+        }
+        Account account = Account.exists(username);
+        if (account == null || !account.checkPassword("password")) throw new IllegalStateException("Login failed");
+    }
+}
@@ -0,0 +1,83 @@
+package chatroom.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the time to save and load 1,000,000 accounts, comparing Java
+ * serialization (as older versions saved accounts.sav) with the binary
+ * snapshot format. Also reports the size of both files.
+ *
+ * Not a unit test: run it with the test classpath and enough memory, e.g.
+ * java -Xmx3g -cp target/classes:target/test-classes chatroom.server.SnapshotBenchmark [accounts]
+ */
+public class SnapshotBenchmark {
+    private static final int ROUNDS = 3; // The first round also warms up the JIT
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        int numAccounts = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        // Creating the accounts is not what we measure, so hash quickly
+        HashPolicy.setCurrent(new HashPolicy("PBKDF2WithHmacSHA1", 1));
+        ArrayList<Account> accounts = new ArrayList<>(numAccounts);
+        for (int i = 0; i < numAccounts; i++) accounts.add(new Account("user" + i, "password" + i));
+        System.out.println(numAccounts + " accounts");
+
+        Path dir = Files.createTempDirectory("snapshot");
+        Path savFile = dir.resolve("accounts.sav");
+        Path snapFile = dir.resolve("accounts.snap");
+        try {
+            for (int round = 1; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(savFile)))) {
+                    out.writeInt(accounts.size());
+                    for (Account account : accounts) out.writeObject(account);
+                }
+                long serializedSave = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                ArrayList<Account> loaded = new ArrayList<>(numAccounts);
+                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(savFile)))) {
+                    int num = in.readInt();
+                    for (int i = 0; i < num; i++) loaded.add((Account) in.readObject());
+                }
+                long serializedLoad = System.nanoTime() - start;
+                check(loaded, numAccounts);
+                loaded = null;
+
+                start = System.nanoTime();
+                if (!Snapshot.save(snapFile, accounts, Account::write)) throw new IllegalStateException("Save failed");
+                long snapshotSave = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                ArrayList<Account> snapLoaded = new ArrayList<>(numAccounts);
+                Snapshot.read(snapFile, in -> snapLoaded.add(Account.read(in)));
+                long snapshotLoad = System.nanoTime() - start;
+                check(snapLoaded, numAccounts);
+
+                System.out.printf("round %d: serialization save %6d ms, load %6d ms | snapshot save %6d ms, load %6d ms%n",
+                        round, serializedSave / 1000000, serializedLoad / 1000000, snapshotSave / 1000000,
+                        snapshotLoad / 1000000);
+            }
+            System.out.printf("file size: serialization %d MB, snapshot %d MB%n", Files.size(savFile) >> 20,
+                    Files.size(snapFile) >> 20);
+        } finally {
+            Files.deleteIfExists(savFile);
+            Files.deleteIfExists(snapFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void check(ArrayList<Account> loaded, int numAccounts) {
+        if (loaded.size() != numAccounts || !loaded.get(numAccounts - 1).getUsername().equals("user" + (numAccounts - 1)))
+            throw new IllegalStateException("Accounts were not loaded correctly");
+    }
+}
@@ -0,0 +1,128 @@
+package chatroom.server;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class SnapshotTest {
+    // All names have the same length, so each record takes 4 + 7 + 4 bytes after the 12-byte header
+    private static final List<String> NAMES = Arrays.asList("alice", "bobby", "carol", "danny");
+    private static final int HEADER_BYTES = 12;
+    private static final int RECORD_BYTES = 15;
+
+    private Path dir;
+    private Path file;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("SnapshotTest");
+        file = dir.resolve("test.snap");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir.resolve("test.snap.tmp"));
+        Files.delete(dir);
+    }
+
+    private boolean save(List<String> names) {
+        return Snapshot.save(file, names, (name, out) -> out.writeUTF(name));
+    }
+
+    private List<String> read() throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        int records = Snapshot.read(file, in -> names.add(in.readUTF()));
+        assertEquals(records, names.size());
+        return names;
+    }
+
+    private void changeByte(int position) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[position] ^= 0x55;
+        Files.write(file, bytes);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        assertTrue(save(NAMES));
+        assertEquals(read(), NAMES);
+        assertFalse(Files.exists(dir.resolve("test.snap.tmp")));
+    }
+
+    @Test
+    public void emptySnapshot() throws IOException {
+        assertTrue(save(Collections.emptyList()));
+        assertEquals(read(), Collections.emptyList());
+    }
+
+    @Test
+    public void damagedRecordIsSkipped() throws IOException {
+        assertTrue(save(NAMES));
+        changeByte(HEADER_BYTES + RECORD_BYTES + 6); // In the content of "bobby"
+        assertEquals(read(), Arrays.asList("alice", "carol", "danny"));
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*is not a snapshot")
+    public void badMagicIsRejected() throws IOException {
+        assertTrue(save(NAMES));
+        changeByte(0);
+        read();
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*unknown format version.*")
+    public void unknownVersionIsRejected() throws IOException {
+        assertTrue(save(NAMES));
+        changeByte(7);
+        read();
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*is incomplete")
+    public void truncatedFileIsIncomplete() throws IOException {
+        assertTrue(save(NAMES));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - RECORD_BYTES - 3));
+        read();
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*is incomplete")
+    public void missingRecordsAreIncomplete() throws IOException {
+        assertTrue(save(NAMES));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - RECORD_BYTES));
+        read();
+    }
+
+    @Test
+    public void tooLargeRecordKeepsPreviousSnapshot() throws IOException {
+        assertTrue(save(NAMES));
+        byte[] previous = Files.readAllBytes(file);
+
+        boolean saved = Snapshot.save(file, Arrays.asList("alice", "large"), (name, out) -> {
+            out.writeUTF(name);
+            if (name.equals("large")) out.write(new byte[1024 * 1024]);
+        });
+        assertFalse(saved);
+        assertEquals(Files.readAllBytes(file), previous);
+        assertEquals(read(), NAMES);
+    }
+
+    @Test
+    public void headerHoldsRecordCount() throws IOException {
+        assertTrue(save(NAMES));
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file), 8, 4);
+        assertEquals(header.getInt(), NAMES.size());
+        assertEquals(Files.size(file), HEADER_BYTES + NAMES.size() * RECORD_BYTES);
+    }
+}
@@ -0,0 +1,87 @@
+package chatroom.server.message;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the time and the bytes allocated per line for splitting protocol
+ * lines into fields:
+ *
+ * - split + trim: decode the line into a String (as BufferedReader.readLine
+ *   did), split it with split("\\|"), and trim every field, as the server used
+ *   to do;
+ * - tokenizer: Tokenizer.reset, then look at every field as the dispatch does
+ *   (hash and compare), without making any Strings;
+ * - tokenizer + fields: as above, plus the Strings that the message handlers
+ *   keep (e.g. token, chatroom and text of a SendMessage).
+ *
+ * The allocated bytes are counted by the JVM for the current thread
+ * (com.sun.management.ThreadMXBean). The tokenizer itself should allocate
+ * nothing at all.
+ *
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes chatroom.server.message.TokenizerBenchmark
+ */
+public class TokenizerBenchmark {
+    private static final int LINES = 1000000;
+    private static final int ROUNDS = 3; // The first rounds also warm up the JIT
+
+    private static final String[] SAMPLES = {
+            "Ping",
+            "Login|alice|correct horse battery staple",
+            "SendMessage|0123456789ABCDEF0123456789ABCDEF|room|Hello, how is everyone today?",
+    };
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static long sink; // Keeps the JIT from optimizing the work away
+
+    private interface Parser {
+        void parse(byte[] line);
+    }
+
+    public static void main(String[] args) {
+        if (!threads.isThreadAllocatedMemorySupported()) throw new IllegalStateException("Not supported by this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Tokenizer tokens = new Tokenizer();
+        Parser splitAndTrim = line -> {
+            String[] parts = new String(line, StandardCharsets.UTF_8).split("\\|");
+            for (int i = 0; i < parts.length; i++) parts[i] = parts[i].trim();
+            sink += parts[0].hashCode() + parts.length;
+        };
+        Parser tokenizer = line -> {
+            tokens.reset(line, 0, line.length);
+            sink += tokens.hashCode(0) + (tokens.equals(0, "SendMessage") ? 1 : 0);
+            for (int i = 1; i < tokens.size(); i++) sink += tokens.length(i);
+        };
+        Parser tokenizerAndFields = line -> {
+            tokens.reset(line, 0, line.length);
+            sink += tokens.hashCode(0);
+            for (int i = 1; i < tokens.size(); i++) sink += tokens.get(i).length();
+        };
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("round " + round);
+            for (String sample : SAMPLES) {
+                byte[] line = sample.getBytes(StandardCharsets.UTF_8);
+                System.out.println("  " + sample.split("\\|")[0]);
+                run("split + trim", line, splitAndTrim);
+                run("tokenizer", line, tokenizer);
+                run("tokenizer + fields", line, tokenizerAndFields);
+            }
+        }
+        if (sink == 42) System.out.println(); // Use the result
+    }
+
+    private static void run(String name, byte[] line, Parser parser) {
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < LINES; i++) parser.parse(line);
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("    %-20s %8.1f ns per line %8.1f bytes per line%n", name, (double) nanos / LINES,
+                (double) allocated / LINES);
+    }
+}
@@ -0,0 +1,63 @@
+package chatroom.server.message;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.*;
+
+public class TokenizerTest {
+
+    private final String[] LINES = {
+            "Ping",
+            "",
+            "|",
+            "||",
+            "Ping|",
+            "Ping| ",
+            "|Ping",
+            "Login|user|password",
+            " Login | user |\tpassword ",
+            "SendMessage|token|room|a || b",
+            "SendMessage|token|room|Gr\u00fcezi mitenand \ud83d\ude00",
+            "CreateChatroom|token|room|TRUE||",
+    };
+
+    private Tokenizer tokenize(String line) {
+        byte[] bytes = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+        Tokenizer tokens = new Tokenizer();
+        tokens.reset(bytes, 2, bytes.length - 4);
+        return tokens;
+    }
+
+    @Test
+    public void sameFieldsAsSplitAndTrim() {
+        for (String line : LINES) {
+            String[] parts = line.split("\\|");
+            Tokenizer tokens = tokenize(line);
+            assertEquals(tokens.size(), parts.length, line);
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i].trim();
+                assertEquals(tokens.get(i), part, line);
+                assertEquals(tokens.length(i), part.getBytes(StandardCharsets.UTF_8).length, line);
+                if (part.chars().allMatch(c -> c < 0x80)) assertEquals(tokens.hashCode(i), part.hashCode(), line);
+            }
+            assertEquals(tokens.toString(), line);
+        }
+    }
+
+    @Test
+    public void compareFields() {
+        Tokenizer tokens = tokenize("CreateChatroom| token |room|True");
+        assertTrue(tokens.equals(0, "CreateChatroom"));
+        assertTrue(tokens.equals(1, "token"));
+        assertFalse(tokens.equals(2, "rooms"));
+        assertTrue(tokens.equalsIgnoreCase(3, "true"));
+        assertFalse(tokens.equals(3, "true"));
+    }
+
+    @Test(expectedExceptions = ArrayIndexOutOfBoundsException.class)
+    public void missingField() {
+        tokenize("Login|user").get(2);
+    }
+}
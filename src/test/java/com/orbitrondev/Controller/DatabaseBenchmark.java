@@ -0,0 +1,152 @@
+package com.orbitrondev.Controller;
+
+import com.orbitrondev.Entity.ChatModel;
+import com.orbitrondev.Entity.ChatType;
+import com.orbitrondev.Entity.MessageModel;
+import com.orbitrondev.Entity.UserModel;
+import com.orbitrondev.Entity.SupportTables.ChatUserModel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures the latency of the lookups done for every message, of opening a chat, and of saving a single message, in a
+ * client database holding 1,000,000 messages. First with the settings and indexes of DatabaseController, then with
+ * the indexes dropped and SQLite's default settings (as older versions used the database).
+ * <p>
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes:... com.orbitrondev.Controller.DatabaseBenchmark [messages]
+ */
+public class DatabaseBenchmark {
+    private static final int USERS = 10000;
+    private static final int CHATS = 1000;
+    private static final int MEMBERS_PER_CHAT = 10;
+    private static final int LOOKUPS = 2000;
+    private static final int CHATS_OPENED = 20;
+    private static final int INSERTS = 500;
+
+    private static final String[] DEFAULT_PROFILE = {
+            "DROP INDEX IF EXISTS users_username_idx",
+            "DROP INDEX IF EXISTS chats_name_idx",
+            "DROP INDEX IF EXISTS messages_chat_id_idx",
+            "DROP INDEX IF EXISTS chatusermodel_chat_id_idx",
+            "DROP INDEX IF EXISTS chatusermodel_user_id_idx",
+            "PRAGMA journal_mode = DELETE",
+            "PRAGMA synchronous = FULL",
+            "PRAGMA mmap_size = 0",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int numMessages = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        File dbFile = File.createTempFile("DatabaseBenchmark", ".db");
+        dbFile.delete();
+        DatabaseController db = new DatabaseController(dbFile.getPath());
+        ServiceLocator.getServiceLocator().setDb(db); // ChatModel.getMembers() uses it
+        try {
+            long start = System.nanoTime();
+            fill(db, numMessages);
+            System.out.printf("%d messages, %d users, %d chats saved in %.1f s%n", numMessages, USERS, CHATS,
+                    (System.nanoTime() - start) / 1e9);
+
+            measure("tuned", db);
+            for (String statement : DEFAULT_PROFILE) {
+                db.getChatDao().executeRaw(statement);
+            }
+            measure("default", db);
+        } finally {
+            db.close();
+            dbFile.delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+        }
+    }
+
+    private static void fill(DatabaseController db, int numMessages) throws Exception {
+        ArrayList<UserModel> users = new ArrayList<>(USERS);
+        ArrayList<ChatModel> chats = new ArrayList<>(CHATS);
+        db.getUserDao().callBatchTasks(() -> {
+            for (int i = 0; i < USERS; i++) {
+                UserModel user = new UserModel("user" + i);
+                db.getUserDao().create(user);
+                users.add(user);
+            }
+            for (int i = 0; i < CHATS; i++) {
+                ChatModel chat = new ChatModel("chat" + i, ChatType.PublicGroupChat);
+                db.getChatDao().create(chat);
+                chats.add(chat);
+                for (int j = 0; j < MEMBERS_PER_CHAT; j++) {
+                    db.getChatUserDao().create(new ChatUserModel(users.get((i * MEMBERS_PER_CHAT + j) % USERS), chat));
+                }
+            }
+            return null;
+        });
+
+        final int chunk = 10000;
+        for (int first = 0; first < numMessages; first += chunk) {
+            final int from = first;
+            db.getMessageDao().callBatchTasks(() -> {
+                for (int i = from; i < Math.min(from + chunk, numMessages); i++) {
+                    db.getMessageDao().create(new MessageModel("Message number " + i, chats.get(i % CHATS), new Date(),
+                            users.get(i % USERS)));
+                }
+                return null;
+            });
+        }
+    }
+
+    private static void measure(String name, DatabaseController db) throws Exception {
+        Random random = new Random(42);
+        System.out.println(name);
+
+        long[] times = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            long start = System.nanoTime();
+            if (db.findUser("user" + random.nextInt(USERS)) == null) throw new IllegalStateException("User not found");
+            times[i] = System.nanoTime() - start;
+        }
+        print("find user", times);
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            long start = System.nanoTime();
+            if (db.findChat("chat" + random.nextInt(CHATS)) == null) throw new IllegalStateException("Chat not found");
+            times[i] = System.nanoTime() - start;
+        }
+        print("find chat", times);
+
+        times = new long[CHATS_OPENED];
+        for (int i = 0; i < CHATS_OPENED; i++) {
+            ChatModel chat = db.findChat("chat" + random.nextInt(CHATS));
+            long start = System.nanoTime();
+            // As the dashboard does, when a chat is opened
+            int count = 0;
+            for (MessageModel message : chat.getMessages()) count++;
+            count += chat.getMembers().size();
+            if (count == 0) throw new IllegalStateException("Empty chat");
+            times[i] = System.nanoTime() - start;
+        }
+        print("open chat", times);
+
+        times = new long[INSERTS];
+        UserModel user = db.findUser("user0");
+        ChatModel chat = db.findChat("chat0");
+        for (int i = 0; i < INSERTS; i++) {
+            long start = System.nanoTime();
+            db.getMessageDao().create(new MessageModel("Another message " + i, chat, new Date(), user));
+            times[i] = System.nanoTime() - start;
+        }
+        print("save message", times);
+    }
+
+    private static void print(String name, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for (long time : sorted) total += time;
+        System.out.printf("  %-13s avg %10.1f us   p50 %10.1f us   p99 %10.1f us%n", name, total / sorted.length / 1e3,
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3);
+    }
+}
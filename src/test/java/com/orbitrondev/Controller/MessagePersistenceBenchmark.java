@@ -0,0 +1,60 @@
+package com.orbitrondev.Controller;
+
+import com.orbitrondev.Entity.ChatModel;
+import com.orbitrondev.Entity.ChatType;
+import com.orbitrondev.Entity.MessageModel;
+import com.orbitrondev.Entity.UserModel;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * Measures how many incoming messages per second the client can save, doing the same database work as
+ * BackendController does for every "MessageText": look up the sender and the chat, then save the message. Compares
+ * saving every message on its own (as before) with the write-behind queue of DatabaseController.
+ * <p>
+ * Not a unit test: run it with the test classpath, e.g.
+ * java -cp target/classes:target/test-classes:... com.orbitrondev.Controller.MessagePersistenceBenchmark [messages]
+ */
+public class MessagePersistenceBenchmark {
+    private static final int ROUNDS = 2; // The first round also warms up the JIT
+    private static final String[] CHATS = {"general", "random", "java", "help"};
+
+    public static void main(String[] args) throws Exception {
+        int numMessages = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("round " + round + ", " + numMessages + " messages");
+            run("one by one", numMessages, false);
+            run("write-behind", numMessages, true);
+        }
+    }
+
+    private static void run(String name, int numMessages, boolean batched) throws Exception {
+        File dbFile = File.createTempFile("MessagePersistenceBenchmark", ".db");
+        dbFile.delete();
+        DatabaseController db = new DatabaseController(dbFile.getPath());
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < numMessages; i++) {
+                UserModel user = db.getUserOrCreate("user" + (i % 10));
+                ChatModel chat = db.getGroupChatOrCreate(CHATS[i % CHATS.length], ChatType.PublicGroupChat);
+                MessageModel message = new MessageModel("Message number " + i, chat, new Date(), user);
+                if (batched) {
+                    db.saveMessage(message);
+                    db.saveMessage(message); // As the listeners used to do; ignored
+                } else {
+                    db.getMessageDao().create(message);
+                }
+            }
+            db.flushMessages();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long saved = db.getMessageDao().countOf();
+            System.out.printf("  %-14s %10.0f messages per second (%d saved)%n", name, numMessages / seconds, saved);
+        } finally {
+            db.close();
+            dbFile.delete();
+        }
+    }
+}